@@ -1,18 +1,14 @@
 package the.topmusic.HTTP;
 
 import android.content.Context;
+import android.util.Log;
 
-import com.google.gson.Gson;
-
-import org.json.JSONObject;
-
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.DateFormat;
@@ -23,13 +19,20 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import the.topmusic.cache.CacheTeeInputStream;
+import the.topmusic.cache.DiskCache;
 import the.topmusic.cache.DiskLruCache;
+import the.topmusic.cache.LruCache;
 import the.topmusic.utils.DiskCacheUtils;
 
 import static the.topmusic.utils.DiskCacheUtils.AddToCacheBlock;
 import static the.topmusic.utils.DiskCacheUtils.DiskCacheUser;
-import static the.topmusic.utils.DiskCacheUtils.GetFromCacheBlock;
 import static the.topmusic.utils.DiskCacheUtils.NoCacheAvailableException;
 
 /**
@@ -54,18 +57,83 @@ public class HTTPCache implements DiskCacheUser {
     public static int HTTPDontLoadCachePolicy = 32;
     // Specifies that cached data may be used if the request fails. If cached data is used, the request will succeed without error. Usually used in combination with other options above.
     public static int HTTPFallbackToCacheIfLoadFailsCachePolicy = 64;
+    // If cached data is stale, return it right away and ask the server if it was modified (using a conditional GET) in the background. Listeners registered with addOnCacheUpdatedListener are told when that brings new content.
+    public static int HTTPReturnStaleWhileRevalidateCachePolicy = 128;
     /**
      * Default disk cache size 100MB
      */
     private static int DISK_CACHE_SIZE = 1024 * 1024 * 100;
+    /**
+     * Version of the on-disk layout. Version 1 stored header and body as two
+     * separate entries keyed by different strings; since the keys are digests
+     * the two halves cannot be paired up again. Version 2 stored the header
+     * as JSON, version 3 as a binary {@link HTTPCacheHeader}. Opening a cache
+     * written with an older version makes DiskLruCache wipe it and start over.
+     */
+    private static final int DISK_CACHE_VERSION = 3;
+    /**
+     * Each entry holds the header and the body of one response, so they are
+     * published, read and evicted together.
+     */
+    private static final int HEADER_INDEX = 0;
+    private static final int BODY_INDEX = 1;
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+    /**
+     * Number of lock stripes, must be a power of two
+     */
+    private static final int LOCK_STRIPES = 32;
+    /**
+     * Default memory cache size 2MB
+     */
+    private static final int MEMORY_CACHE_SIZE = 1024 * 1024 * 2;
+    /**
+     * Bodies larger than this as stored, that is possibly compressed, are only kept on disk
+     */
+    private static final int MEMORY_CACHE_MAX_BODY = 1024 * 128;
+    /**
+     * Stamped on every stored header with the time the response was fetched
+     */
+    private static final String FETCH_DATE_HEADER = "X-GYHTTPCache-Fetch-date";
     private static HTTPCache instance = null;
-    private DiskLruCache mDiskCache;
+    private DiskCache mDiskCache;
     private DiskCacheUtils mCacheUtil;
     private DateFormat rfc1123DateFormatter;
+    /**
+     * Per-URI read/write locks. A URI always maps to the same stripe, so two
+     * writers of one URI are serialized and readers never observe a header
+     * and body from different writes, while different URIs proceed in
+     * parallel.
+     */
+    private final ReadWriteLock[] mLocks = new ReadWriteLock[LOCK_STRIPES];
+    /**
+     * Parsed headers and small bodies of recently read responses, consulted
+     * before the disk cache. Only ever filled from the disk cache while
+     * holding the URI's read lock, and invalidated under its write lock.
+     */
+    private final MemoryCache mMemoryCache = new MemoryCache(MEMORY_CACHE_SIZE);
+    private final AtomicInteger mDiskHitCount = new AtomicInteger();
+    private final AtomicInteger mDiskMissCount = new AtomicInteger();
+    /**
+     * Whether uncompressed text bodies are gzipped before they are stored
+     */
+    private volatile boolean mCompressBodies = true;
+    private final CopyOnWriteArrayList<OnCacheUpdatedListener> mUpdateListeners = new CopyOnWriteArrayList<OnCacheUpdatedListener>();
 
     public HTTPCache() {
-        mCacheUtil = DiskCacheUtils.getDefaultCache();
-        mCacheUtil.initDiskCacheFor(this, DISK_CACHE_SIZE, false);
+        this(DiskCacheUtils.getDefaultCache(), null);
+        mCacheUtil.initDiskCacheFor(this, DISK_CACHE_SIZE, false, DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT);
+    }
+
+    /**
+     * Over a disk cache the caller opened, with {@link #DISK_CACHE_VALUE_COUNT}
+     * values per entry, e.g. to benchmark it
+     */
+    HTTPCache(DiskCacheUtils cacheUtil, DiskCache diskCache) {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new ReentrantReadWriteLock();
+        }
+        mCacheUtil = cacheUtil;
+        mDiskCache = diskCache;
         rfc1123DateFormatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
         rfc1123DateFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
@@ -84,7 +152,7 @@ public class HTTPCache implements DiskCacheUser {
 
     public static String digestForUrl(String url) {
         if ((url != null) && (url.length() > 0)) {
-            return Integer.toHexString(url.hashCode());
+            return DiskCacheUtils.md5Hex(url);
         }
 
         return null;
@@ -99,49 +167,57 @@ public class HTTPCache implements DiskCacheUser {
             return response;
         }
 
-        String headerPath = null;
-        String bodyPath = null;
+        final String key = pathForURI(uri);
+        final Lock lock = lockFor(uri).readLock();
+        lock.lock();
         try {
-            headerPath = headerPathForURI(uri);
-            bodyPath = bodyPathForURI(uri);
-        } catch (NoCacheAvailableException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-        synchronized (this) {
-            try {
-                final String jsHeader = mCacheUtil.getStringFromCache(mDiskCache, headerPath);
-
-                if (jsHeader == null) {
+            final MemoryEntry memoryEntry = mMemoryCache.get(key);
+            if (memoryEntry != null) {
+                // Callers stamp the header map they get back, keep ours intact
+                response.setHeaderMap(new LinkedHashMap<String, String>(memoryEntry.headers));
+                response.setExpires(memoryEntry.expires);
+                response.setStaleUntil(memoryEntry.staleUntil);
+                response.setBodyStream(new ByteArrayInputStream(memoryEntry.body));
+            } else {
+                // The snapshot opens header and body together, so they always
+                // come from the same committed edit
+                final DiskLruCache.Snapshot snapshot = mCacheUtil.getSnapshotFromCache(mDiskCache, key);
+                if (snapshot == null) {
+                    mDiskMissCount.incrementAndGet();
                     return null;
                 }
+                mDiskHitCount.incrementAndGet();
 
-                LinkedHashMap<String, String> headerMap = new Gson().fromJson(jsHeader, new LinkedHashMap<String, String>().getClass());
-                response.setHeaderMap(headerMap);
-
-                FileInputStream bodyStream = null;
-                mCacheUtil.getFileStreamFromCache(mDiskCache, bodyPath, new GetFromCacheBlock() {
-                    @Override
-                    public void readFrom(InputStream in) {
-                        response.setBodyStream(in);
-                    }
-
-                    @Override
-                    public boolean takeOwnership() {
-                        return true;
-                    }
-                });
-
-            } catch (Exception e) {
-                return null;
+                try {
+                    final HTTPCacheHeader header = HTTPCacheHeader.decode(snapshot.getInputStream(HEADER_INDEX));
+                    response.setHeaderMap(header.getHeaders());
+                    response.setExpires(header.getExpires());
+                    response.setStaleUntil(header.getStaleUntil());
+                    response.setBodyStream(promoteToMemoryCache(key, header, snapshot.getInputStream(BODY_INDEX)));
+                } catch (Exception e) {
+                    snapshot.close();
+                    return null;
+                }
             }
+        } finally {
+            lock.unlock();
+        }
+        // Bodies are stored the way the server sent them or gzipped by put,
+        // callers always get them decoded
+        try {
+            response.setBodyStream(HTTPContentEncoding.decode(response.getBody(),
+                    HTTPContentEncoding.headerValue(response.getHeaders(), HTTPContentEncoding.CONTENT_ENCODING)));
+        } catch (IOException e) {
+            Log.w(TAG, "get - cannot decode body of " + uri + " - " + e);
+            DiskLruCache.closeQuietly(response.getBody());
+            return null;
         }
         if ((requestCachePolicy & HTTPOnlyLoadIfNotCachedCachePolicy) != 0) {
             return response;
         } else if ((requestCachePolicy & HTTPFallbackToCacheIfLoadFailsCachePolicy) != 0) {
             return response;
-        } else if ((requestCachePolicy & HTTPAskServerIfModifiedWhenStaleCachePolicy) != 0) {
+        } else if ((requestCachePolicy & HTTPAskServerIfModifiedWhenStaleCachePolicy) != 0
+                || (requestCachePolicy & HTTPReturnStaleWhileRevalidateCachePolicy) != 0) {
             if (!isCachedDataCurrentForRequest(response)) {
                 response.setStale(true);
             }
@@ -156,59 +232,94 @@ public class HTTPCache implements DiskCacheUser {
     }
 
     public boolean isCachedDataCurrentForRequest(HTTPCacheResponse response) {
-        Date now = new Date();
+        // The expiry was worked out from the headers when the entry was stored,
+        // so this neither parses nor allocates and needs no lock
+        return response.getExpires() > System.currentTimeMillis();
+    }
 
-        Map<String, String> cachedHeaders = response.getHeaders();
-        String cacheControl = cachedHeaders.get("Cache-Control");
-        if (cacheControl != null) {
-            cacheControl = cacheControl.toLowerCase();
-            int ageIndex = cacheControl.indexOf("max-age");
-            if (ageIndex != -1) {
-                String ageString = cacheControl.substring(ageIndex);
-                String[] ageNVP = ageString.split("=");
-                long maxAge = Long.parseLong(ageNVP[1]);
-
-                String fetchDateStr = cachedHeaders.get("X-GYHTTPCache-Fetch-date");
-                Date fetchDate = null;
-                try {
-                    fetchDate = rfc1123DateFormatter.parse(fetchDateStr);
-                } catch (ParseException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-                Date expiryDate = new Date(fetchDate.getTime() + maxAge * 1000);
+    /**
+     * @return The time the cached response was fetched from the server, in
+     * epoch millis to the second, or 0 if it is not known
+     */
+    public long getFetchTime(HTTPCacheResponse response) {
+        String fetchDate = HTTPContentEncoding.headerValue(response.getHeaders(), FETCH_DATE_HEADER);
+        if (fetchDate == null) {
+            return 0;
+        }
+        try {
+            return parseDate(fetchDate).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
 
-                if (expiryDate.after(now)) {
-                    return true;
-                }
-                // RFC 2612 says max-age must override any Expires header
-                return false;
-            }
+    /**
+     * Works out when a response fetched at {@code fetchTime} stops being
+     * fresh, from its Cache-Control directives or else its Expires header.
+     */
+    private long computeExpiry(HTTPCacheControl cacheControl, Map<String, String> cachedHeaders, long fetchTime) {
+        if (cacheControl.isNoCache()) {
+            return fetchTime;
+        }
+        // s-maxage only applies to shared caches, this one is private
+        if (cacheControl.getMaxAge() != HTTPCacheControl.ABSENT) {
+            // RFC 2612 says max-age must override any Expires header
+            return fetchTime + cacheControl.getMaxAge() * 1000;
         }
 
         // Look for an Expires header to see if the content is out of date
         String expires = cachedHeaders.get("Expires");
         if (expires != null) {
-            Date expiryDate = null;
             try {
-                expiryDate = rfc1123DateFormatter.parse(expires);
+                return parseDate(expires).getTime();
             } catch (ParseException e) {
                 e.printStackTrace();
-                return false;
-            }
-            if (expiryDate.after(now)) {
-                return true;
             }
         }
-        return false;
+        // No freshness information, always revalidate
+        return fetchTime;
+    }
+
+    /**
+     * @param compressBodies True to gzip uncompressed text bodies passed to
+     *                       {@link #put(URI, Map, byte[], int)} before they are
+     *                       stored. Bodies the server sent compressed are always
+     *                       stored as they are.
+     */
+    public void setCompressBodies(boolean compressBodies) {
+        mCompressBodies = compressBodies;
+    }
+
+    public void addOnCacheUpdatedListener(OnCacheUpdatedListener listener) {
+        mUpdateListeners.addIfAbsent(listener);
+    }
+
+    public void removeOnCacheUpdatedListener(OnCacheUpdatedListener listener) {
+        mUpdateListeners.remove(listener);
+    }
+
+    /**
+     * Tells the listeners that {@code uri} got new content from a background
+     * revalidation, i.e. a different body or validators. Called on the thread
+     * that did the revalidation.
+     */
+    public void notifyCacheUpdated(URI uri) {
+        for (OnCacheUpdatedListener listener : mUpdateListeners) {
+            listener.onCacheUpdated(uri);
+        }
     }
 
     public void remove(URI uri) throws NoCacheAvailableException {
-        String headerPath = headerPathForURI(uri);
-        String bodyPath = bodyPathForURI(uri);
+        String key = pathForURI(uri);
 
-        mCacheUtil.removeKeyFromCache(mDiskCache, headerPath);
-        mCacheUtil.removeKeyFromCache(mDiskCache, bodyPath);
+        final Lock lock = lockFor(uri).writeLock();
+        lock.lock();
+        try {
+            mMemoryCache.remove(key);
+            mCacheUtil.removeKeyFromCache(mDiskCache, key);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void put(URI uri, Map<String, String> headers, InputStream body) throws IOException, NoCacheAvailableException {
@@ -216,77 +327,120 @@ public class HTTPCache implements DiskCacheUser {
     }
 
     public void updateHeader(URI uri, HTTPCacheResponse cacheResponse) throws NoCacheAvailableException, IOException {
-        String headerPath = headerPathForURI(uri);
-        String bodyPath = bodyPathForURI(uri);
+        String key = pathForURI(uri);
 
         Map<String, String> headerMap = cacheResponse.getHeaders();
-        // We use this special key to help expire the request when we get a max-age header
-        Date now = new Date();
-        headerMap.put("X-GYHTTPCache-Fetch-date", rfc1123DateFormatter.format(now));
+        HTTPCacheHeader header = buildCacheHeader(headerMap, 0);
+        if (header == null) {
+            remove(uri);
+            return;
+        }
+        cacheResponse.setExpires(header.getExpires());
+        cacheResponse.setStaleUntil(header.getStaleUntil());
 
-        String jsHeader = new Gson().toJson(headerMap);
-        synchronized (this) {
-            mCacheUtil.removeKeyFromCache(mDiskCache, headerPath);
-            mCacheUtil.addStringToCache(mDiskCache, headerPath, jsHeader);
+        byte[] encodedHeader = header.encode();
+        final Lock lock = lockFor(uri).writeLock();
+        lock.lock();
+        try {
+            mMemoryCache.remove(key);
+            final DiskLruCache.Editor editor = mCacheUtil.editCache(mDiskCache, key);
+            if (editor != null) {
+                // Only the header is rewritten, the body keeps its committed value
+                writeValue(editor, HEADER_INDEX, encodedHeader);
+                try {
+                    editor.commit();
+                } catch (IllegalStateException e) {
+                    // The entry was evicted in the meantime, there is no body to keep
+                    Log.w(TAG, "updateHeader - " + e);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     public void put(URI uri, Map<String, String> headerMap, final InputStream body, int maxAge) throws NoCacheAvailableException, IOException {
-        String headerPath = headerPathForURI(uri);
-        String bodyPath = bodyPathForURI(uri);
-
-        stampTimeOnHeader(headerMap, maxAge);
-
-        String jsHeader = new Gson().toJson(headerMap);
-        synchronized (this) {
-            mCacheUtil.addStringToCache(mDiskCache, headerPath, jsHeader);
-
-            mCacheUtil.addToStreamedCache(mDiskCache, bodyPath, new AddToCacheBlock() {
-                @Override
-                public void writeTo(OutputStream out) {
-                    byte[] buffer = new byte[4096];
-                    int readBytes;
-                    try {
-                        while ((readBytes = body.read(buffer)) != -1) {
-                            out.write(buffer, 0, readBytes);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
+        writeEntry(uri, buildCacheHeader(headerMap, maxAge), new AddToCacheBlock() {
+            @Override
+            public void writeTo(OutputStream out) {
+                byte[] buffer = new byte[4096];
+                int readBytes;
+                try {
+                    while ((readBytes = body.read(buffer)) != -1) {
+                        out.write(buffer, 0, readBytes);
                     }
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            });
-        }
+            }
+        });
     }
 
-    public String bodyPathForURL(String url) {
-        if (url == null || url.trim().equals("")) {
-            return null;
+    /**
+     * Streaming variant of {@link #put(URI, Map, InputStream, int)}. Instead of
+     * draining {@code body} into the cache before anything can be read back,
+     * the returned stream hands the bytes to the caller as they arrive and
+     * writes them to the cache at the same time. The entry (header and body)
+     * only becomes visible once the caller has read the whole body, that is
+     * its Content-Length if the header has one, else to EOF; closing the
+     * stream earlier discards the partial body.
+     */
+    public InputStream putStreaming(final URI uri, Map<String, String> headerMap, final InputStream body, int maxAge) throws NoCacheAvailableException {
+        final String key = pathForURI(uri);
+
+        final long contentLength = contentLength(headerMap);
+        final HTTPCacheHeader header = buildCacheHeader(headerMap, maxAge);
+        if (header == null) {
+            remove(uri);
+            return body;
         }
-        String ret = null;
 
+        final Lock lock = lockFor(uri).writeLock();
+        DiskLruCache.Editor editor = null;
+        lock.lock();
         try {
-            ret = bodyPathForURI(new URI(url));
-        } catch (Exception e) {
-            ret = null;
+            mMemoryCache.remove(key);
+            editor = mCacheUtil.editCache(mDiskCache, key);
+            if (editor != null) {
+                // The header sits in the dirty entry until the body commits
+                writeValue(editor, HEADER_INDEX, header.encode());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "putStreaming - " + e);
+            try {
+                editor.abort();
+            } catch (IOException ignored) {
+            }
+            editor = null;
+        } finally {
+            lock.unlock();
         }
-
-        return ret;
+        return mCacheUtil.teeToStreamedCache(mDiskCache, editor, BODY_INDEX, body, contentLength, new CacheTeeInputStream.OnCommitListener() {
+            @Override
+            public void onCommitted() {
+                lock.lock();
+                try {
+                    mMemoryCache.remove(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
     }
 
-    public String bodyPathForURI(URI uri) {
-        String[] urlStrs = uri.getPath().split("\\.");
-        String ext = "";
-        if (urlStrs.length > 1 && urlStrs[1].length() <= 4) {
-            ext = "." + urlStrs[1];
+    /**
+     * @return The Content-Length in {@code headers}, or -1 if there is none
+     */
+    private static long contentLength(Map<String, String> headers) {
+        String value = HTTPContentEncoding.headerValue(headers, "Content-Length");
+        if (value == null) {
+            return -1;
         }
-        if (ext.equalsIgnoreCase(".php")) {
-            ext = ".html";
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        return pathForURI(uri) + ext;
-    }
-
-    private String headerPathForURI(URI uri) throws NoCacheAvailableException {
-        return pathForURI(uri) + ".cachedHeader";
     }
 
     private String pathForURI(URI uri) {
@@ -296,58 +450,196 @@ public class HTTPCache implements DiskCacheUser {
     }
 
     public void put(URI uri, Map<String, String> headerMap, final byte[] responseData, int maxAge) throws NoCacheAvailableException, IOException {
-        String headerPath = headerPathForURI(uri);
-        String bodyPath = bodyPathForURI(uri);
-
-        stampTimeOnHeader(headerMap, maxAge);
-
-        String jsHeader = new Gson().toJson(headerMap);
-        synchronized (this) {
-            mCacheUtil.addStringToCache(mDiskCache, headerPath, jsHeader);
-
-            mCacheUtil.addToStreamedCache(mDiskCache, bodyPath, new AddToCacheBlock() {
-                @Override
-                public void writeTo(OutputStream out) {
-                    try {
-                        out.write(responseData);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        final byte[] body;
+        if (mCompressBodies && HTTPContentEncoding.shouldCompress(headerMap, responseData.length)) {
+            // Keep it compressed at rest, get decodes it again
+            body = HTTPContentEncoding.gzip(responseData);
+            headerMap.put(HTTPContentEncoding.CONTENT_ENCODING, HTTPContentEncoding.GZIP);
+            headerMap.remove("Content-Length");
+        } else {
+            body = responseData;
+        }
+        writeEntry(uri, buildCacheHeader(headerMap, maxAge), new AddToCacheBlock() {
+            @Override
+            public void writeTo(OutputStream out) {
+                try {
+                    out.write(body);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            });
+            }
+        });
+    }
+
+    /**
+     * Writes header and body of {@code uri} as one entry, replacing whatever
+     * was cached before. A null header means the response may not be stored.
+     */
+    private void writeEntry(URI uri, HTTPCacheHeader header, AddToCacheBlock bodyBlock) throws IOException, NoCacheAvailableException {
+        String key = pathForURI(uri);
+        if (header == null) {
+            remove(uri);
+            return;
+        }
+
+        final Lock lock = lockFor(uri).writeLock();
+        byte[] encodedHeader = header.encode();
+        lock.lock();
+        try {
+            mMemoryCache.remove(key);
+            final DiskLruCache.Editor editor = mCacheUtil.editCache(mDiskCache, key);
+            if (editor == null) {
+                return;
+            }
+            OutputStream out = null;
+            try {
+                writeValue(editor, HEADER_INDEX, encodedHeader);
+                out = editor.newOutputStream(BODY_INDEX);
+                bodyBlock.writeTo(out);
+                out.close();
+                out = null;
+                editor.commit();
+            } catch (IOException e) {
+                DiskLruCache.closeQuietly(out);
+                editor.abort();
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void writeValue(DiskLruCache.Editor editor, int index, byte[] value) throws IOException {
+        OutputStream out = editor.newOutputStream(index);
+        try {
+            out.write(value);
+        } finally {
+            out.close();
         }
     }
 
-    private void stampTimeOnHeader(Map<String, String> headerMap, int maxAge) {
-        if (maxAge != 0) {
+    /**
+     * Stamps the fetch time on the headers and works out their expiry.
+     *
+     * @param maxAge If not 0, replaces the freshness lifetime the server sent,
+     *               unless the server asked for no-cache
+     * @return The header to store, or null if the server sent no-store
+     */
+    private HTTPCacheHeader buildCacheHeader(Map<String, String> headerMap, int maxAge) {
+        HTTPCacheControl cacheControl = HTTPCacheControl.parse(headerMap.get("Cache-Control"));
+        if (cacheControl.isNoStore()) {
+            return null;
+        }
+        if (maxAge != 0 && !cacheControl.isNoCache()) {
+            StringBuilder directives = new StringBuilder("max-age=").append(maxAge);
+            if (cacheControl.isMustRevalidate()) {
+                directives.append(", must-revalidate");
+            }
+            if (cacheControl.getStaleWhileRevalidate() != HTTPCacheControl.ABSENT) {
+                directives.append(", stale-while-revalidate=").append(cacheControl.getStaleWhileRevalidate());
+            }
             headerMap.remove("Expires");
-            headerMap.put("Cache-Control", String.format("max-age=%d", maxAge));
+            headerMap.put("Cache-Control", directives.toString());
+            cacheControl = HTTPCacheControl.parse(directives.toString());
         }
         // We use this special key to help expire the request when we get a max-age header
         Date now = new Date();
-        headerMap.put("X-GYHTTPCache-Fetch-date", rfc1123DateFormatter.format(now));
+        headerMap.put(FETCH_DATE_HEADER, formatDate(now));
+
+        long expires = computeExpiry(cacheControl, headerMap, now.getTime());
+        long staleUntil = expires;
+        if (cacheControl.getStaleWhileRevalidate() != HTTPCacheControl.ABSENT
+                && !cacheControl.isMustRevalidate() && !cacheControl.isNoCache()) {
+            staleUntil = expires + cacheControl.getStaleWhileRevalidate() * 1000;
+        }
+        return new HTTPCacheHeader(headerMap, expires, staleUntil);
     }
 
-    public void put(URI uri, Map<String, String> headerMap, StringBuffer responseString, int maxAge) throws NoCacheAvailableException, IOException {
-        String headerPath = headerPathForURI(uri);
-        String bodyPath = bodyPathForURI(uri);
+    /**
+     * Reads a body fetched from the disk cache into the memory cache if it is
+     * small enough. Larger bodies are handed back unchanged, with the part
+     * already read stitched in front of the rest of the stream.
+     */
+    private InputStream promoteToMemoryCache(String memoryKey, HTTPCacheHeader header, InputStream in) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        try {
+            int readBytes;
+            while (out.size() <= MEMORY_CACHE_MAX_BODY && (readBytes = in.read(buffer)) != -1) {
+                out.write(buffer, 0, readBytes);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            DiskLruCache.closeQuietly(in);
+            return null;
+        }
 
-        stampTimeOnHeader(headerMap, maxAge);
+        final byte[] body = out.toByteArray();
+        if (body.length > MEMORY_CACHE_MAX_BODY) {
+            return new SequenceInputStream(new ByteArrayInputStream(body), in);
+        }
+        DiskLruCache.closeQuietly(in);
 
-        JSONObject jsHeader = new JSONObject(headerMap);
-        synchronized (this) {
-            File file = new File(headerPath);
-            BufferedWriter fwr = new BufferedWriter(new FileWriter(file), 8192);
-            fwr.write(jsHeader.toString());
-            fwr.close();
+        mMemoryCache.put(memoryKey, new MemoryEntry(new LinkedHashMap<String, String>(header.getHeaders()), header.getExpires(), header.getStaleUntil(), body));
+        return new ByteArrayInputStream(body);
+    }
+
+    public int getMemoryHitCount() {
+        return mMemoryCache.hitCount();
+    }
+
+    public int getMemoryMissCount() {
+        return mMemoryCache.missCount();
+    }
+
+    public int getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    public int getDiskMissCount() {
+        return mDiskMissCount.get();
+    }
 
-            file = new File(bodyPath);
-            fwr = new BufferedWriter(new FileWriter(file), 8192);
-            fwr.write(responseString.toString());
-            fwr.close();
+    /**
+     * Returns the lock guarding the cache entries of {@code uri}.
+     */
+    private ReadWriteLock lockFor(URI uri) {
+        int hash = pathForURI(uri).hashCode();
+        // Spread the higher bits, String.hashCode() is weak in the low ones
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return mLocks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * SimpleDateFormat is not thread safe, and requests for different URIs
+     * now run concurrently.
+     */
+    private String formatDate(Date date) {
+        synchronized (rfc1123DateFormatter) {
+            return rfc1123DateFormatter.format(date);
+        }
+    }
+
+    private Date parseDate(String date) throws ParseException {
+        synchronized (rfc1123DateFormatter) {
+            return rfc1123DateFormatter.parse(date);
         }
     }
 
+    public void put(URI uri, Map<String, String> headerMap, final StringBuffer responseString, int maxAge) throws NoCacheAvailableException, IOException {
+        writeEntry(uri, buildCacheHeader(headerMap, maxAge), new AddToCacheBlock() {
+            @Override
+            public void writeTo(OutputStream out) {
+                try {
+                    out.write(responseString.toString().getBytes("UTF-8"));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
     public boolean urlCached(String url) {
         try {
             return this.uriCached(new URI(url));
@@ -358,17 +650,20 @@ public class HTTPCache implements DiskCacheUser {
     }
 
     public boolean uriCached(URI uri) {
-        String bodyPath = null;
-        boolean cached = false;
-        bodyPath = bodyPathForURI(uri);
-        if (new File(bodyPath).exists()) {
-            cached = true;
+        String key = pathForURI(uri);
+        if (mMemoryCache.get(key) != null) {
+            return true;
+        }
+        final DiskLruCache.Snapshot snapshot = mCacheUtil.getSnapshotFromCache(mDiskCache, key);
+        if (snapshot != null) {
+            snapshot.close();
+            return true;
         }
-        return cached;
+        return false;
     }
 
     @Override
-    public void setCache(DiskLruCache cache) {
+    public void setCache(DiskCache cache) {
         mDiskCache = cache;
     }
 
@@ -377,4 +672,54 @@ public class HTTPCache implements DiskCacheUser {
         return TAG;
     }
 
-}
\ No newline at end of file
+    /**
+     * Notified when a stale entry that was served to a caller has been
+     * replaced by newer content from the server.
+     */
+    public interface OnCacheUpdatedListener {
+        void onCacheUpdated(URI uri);
+    }
+
+    /**
+     * A response held by the {@link MemoryCache}.
+     */
+    private static final class MemoryEntry {
+        private final Map<String, String> headers;
+        private final long expires;
+        private final long staleUntil;
+        private final byte[] body;
+        private final int size;
+
+        private MemoryEntry(Map<String, String> headers, long expires, long staleUntil, byte[] body) {
+            this.headers = headers;
+            this.expires = expires;
+            this.staleUntil = staleUntil;
+            this.body = body;
+            // Rough footprint: two bytes per char plus String/map entry overhead
+            int headerSize = 0;
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                headerSize += 64 + 2 * header.getKey().length();
+                if (header.getValue() != null) {
+                    headerSize += 2 * header.getValue().length();
+                }
+            }
+            size = body.length + headerSize;
+        }
+    }
+
+    /**
+     * Used to cache responses in memory via {@link LruCache}, bounded by bytes.
+     */
+    private static final class MemoryCache extends LruCache<String, MemoryEntry> {
+
+        public MemoryCache(final int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(final String key, final MemoryEntry entry) {
+            return entry.size;
+        }
+    }
+
+}
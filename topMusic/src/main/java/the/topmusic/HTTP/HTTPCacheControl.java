@@ -0,0 +1,162 @@
+package the.topmusic.HTTP;
+
+/**
+ * The directives of a Cache-Control response header that matter to
+ * {@link HTTPCache}. Unknown directives are ignored, and delta-seconds that
+ * are missing or malformed read as absent.
+ */
+public class HTTPCacheControl {
+    /**
+     * Value of a delta-seconds directive that was not present
+     */
+    public static final long ABSENT = -1;
+
+    private boolean noCache = false;
+    private boolean noStore = false;
+    private boolean mustRevalidate = false;
+    private long maxAge = ABSENT;
+    private long sMaxAge = ABSENT;
+    private long staleWhileRevalidate = ABSENT;
+
+    private HTTPCacheControl() {
+    }
+
+    /**
+     * @param value The Cache-Control header value, may be null
+     */
+    public static HTTPCacheControl parse(String value) {
+        final HTTPCacheControl cacheControl = new HTTPCacheControl();
+        if (value == null) {
+            return cacheControl;
+        }
+
+        final int length = value.length();
+        int pos = 0;
+        while (pos < length) {
+            // Directive name
+            pos = skipWhitespace(value, pos);
+            int nameStart = pos;
+            while (pos < length && value.charAt(pos) != '=' && value.charAt(pos) != ','
+                    && !Character.isWhitespace(value.charAt(pos))) {
+                pos++;
+            }
+            final String name = value.substring(nameStart, pos);
+            pos = skipWhitespace(value, pos);
+
+            // Optional argument, a token or a quoted string
+            String argument = null;
+            if (pos < length && value.charAt(pos) == '=') {
+                pos = skipWhitespace(value, pos + 1);
+                if (pos < length && value.charAt(pos) == '"') {
+                    int argumentStart = ++pos;
+                    while (pos < length && value.charAt(pos) != '"') {
+                        pos++;
+                    }
+                    argument = value.substring(argumentStart, pos);
+                    pos++;
+                } else {
+                    int argumentStart = pos;
+                    while (pos < length && value.charAt(pos) != ','
+                            && !Character.isWhitespace(value.charAt(pos))) {
+                        pos++;
+                    }
+                    argument = value.substring(argumentStart, pos);
+                }
+            }
+
+            // Skip anything up to the next directive
+            while (pos < length && value.charAt(pos) != ',') {
+                pos++;
+            }
+            pos++;
+
+            cacheControl.apply(name, argument);
+        }
+        return cacheControl;
+    }
+
+    private void apply(String name, String argument) {
+        if ("no-cache".equalsIgnoreCase(name)) {
+            noCache = true;
+        } else if ("no-store".equalsIgnoreCase(name)) {
+            noStore = true;
+        } else if ("must-revalidate".equalsIgnoreCase(name)) {
+            mustRevalidate = true;
+        } else if ("max-age".equalsIgnoreCase(name)) {
+            maxAge = parseSeconds(argument);
+        } else if ("s-maxage".equalsIgnoreCase(name)) {
+            sMaxAge = parseSeconds(argument);
+        } else if ("stale-while-revalidate".equalsIgnoreCase(name)) {
+            staleWhileRevalidate = parseSeconds(argument);
+        }
+    }
+
+    private static int skipWhitespace(String value, int pos) {
+        while (pos < value.length() && Character.isWhitespace(value.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static long parseSeconds(String argument) {
+        if (argument == null || argument.length() == 0) {
+            return ABSENT;
+        }
+        long seconds = 0;
+        for (int i = 0; i < argument.length(); i++) {
+            final char c = argument.charAt(i);
+            if (c < '0' || c > '9') {
+                return ABSENT;
+            }
+            seconds = seconds * 10 + (c - '0');
+            if (seconds > Integer.MAX_VALUE) {
+                // RFC 7234 says to treat overflowing values as "infinity"
+                return Integer.MAX_VALUE;
+            }
+        }
+        return seconds;
+    }
+
+    /**
+     * @return True if the response must be revalidated before every use
+     */
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    /**
+     * @return True if the response must not be stored at all
+     */
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /**
+     * @return True if the response must not be served once stale
+     */
+    public boolean isMustRevalidate() {
+        return mustRevalidate;
+    }
+
+    /**
+     * @return The max-age in seconds, or {@link #ABSENT}
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return The s-maxage in seconds, or {@link #ABSENT}. It only applies to
+     * shared caches, so {@link HTTPCache}, being private, ignores it.
+     */
+    public long getSMaxAge() {
+        return sMaxAge;
+    }
+
+    /**
+     * @return The stale-while-revalidate window in seconds, or {@link #ABSENT}
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+}
@@ -0,0 +1,182 @@
+package the.topmusic.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The cached metadata of a response: its headers, the absolute time it
+ * expires and the time until which it may be served stale while being
+ * revalidated, both computed once when the response is stored.
+ * <p/>
+ * On disk this is a compact binary record, so reading it back needs neither
+ * a JSON parser nor reflection:
+ * <pre>
+ * byte    format version
+ * long    expiry, epoch millis
+ * long    end of the stale-while-revalidate window, epoch millis (version 2)
+ * int     number of headers
+ * repeated for each header:
+ *   int   name length, followed by the name in UTF-8
+ *   int   value length (-1 for null), followed by the value in UTF-8
+ * </pre>
+ */
+public class HTTPCacheHeader {
+    private static final byte FORMAT_VERSION = 2;
+
+    private static final byte FORMAT_VERSION_1 = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, String> headerMap;
+
+    private final long expires;
+
+    private final long staleUntil;
+
+    public HTTPCacheHeader(Map<String, String> headerMap, long expires, long staleUntil) {
+        this.headerMap = headerMap;
+        this.expires = expires;
+        this.staleUntil = staleUntil;
+    }
+
+    /**
+     * @return The response headers
+     */
+    public Map<String, String> getHeaders() {
+        return headerMap;
+    }
+
+    /**
+     * @return The time the response stops being fresh, in epoch millis
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return The time until which the response may be served stale while it
+     * is revalidated, in epoch millis. Equal to the expiry if it may not.
+     */
+    public long getStaleUntil() {
+        return staleUntil;
+    }
+
+    public byte[] encode() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(expires);
+        out.writeLong(staleUntil);
+        out.writeInt(headerMap.size());
+        for (Map.Entry<String, String> header : headerMap.entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a header record, closing {@code in} when done.
+     */
+    public static HTTPCacheHeader decode(InputStream in) throws IOException {
+        final byte[] data;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            final byte[] buffer = new byte[512];
+            int readBytes;
+            while ((readBytes = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, readBytes);
+            }
+            data = bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+        return decode(data);
+    }
+
+    public static HTTPCacheHeader decode(byte[] data) throws IOException {
+        final Reader reader = new Reader(data);
+        final int version = reader.readByte();
+        if (version != FORMAT_VERSION && version != FORMAT_VERSION_1) {
+            throw new IOException("unexpected cache header version: " + version);
+        }
+        final long expires = reader.readLong();
+        final long staleUntil = version == FORMAT_VERSION_1 ? expires : reader.readLong();
+        final int count = reader.readInt();
+        if (count < 0) {
+            throw new IOException("unexpected cache header count: " + count);
+        }
+        final Map<String, String> headerMap = new LinkedHashMap<String, String>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            final String name = reader.readString();
+            headerMap.put(name, reader.readString());
+        }
+        return new HTTPCacheHeader(headerMap, expires, staleUntil);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Big-endian reader over the record, matching {@link DataOutputStream}.
+     */
+    private static final class Reader {
+        private final byte[] data;
+        private int position;
+
+        private Reader(byte[] data) {
+            this.data = data;
+        }
+
+        private void require(int count) throws IOException {
+            if (count < 0 || data.length - position < count) {
+                throw new IOException("truncated cache header");
+            }
+        }
+
+        private int readByte() throws IOException {
+            require(1);
+            return data[position++];
+        }
+
+        private int readInt() throws IOException {
+            require(4);
+            final int value = ((data[position] & 0xFF) << 24)
+                    | ((data[position + 1] & 0xFF) << 16)
+                    | ((data[position + 2] & 0xFF) << 8)
+                    | (data[position + 3] & 0xFF);
+            position += 4;
+            return value;
+        }
+
+        private long readLong() throws IOException {
+            final long high = readInt() & 0xFFFFFFFFL;
+            final long low = readInt() & 0xFFFFFFFFL;
+            return (high << 32) | low;
+        }
+
+        private String readString() throws IOException {
+            final int length = readInt();
+            if (length == -1) {
+                return null;
+            }
+            require(length);
+            final String value = new String(data, position, length, UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
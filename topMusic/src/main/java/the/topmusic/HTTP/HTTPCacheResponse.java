@@ -12,11 +12,15 @@ public class HTTPCacheResponse {
     boolean stale;
     private InputStream bodyStream;
     private Map<String, String> headerMap;
+    private long expires;
+    private long staleUntil;
 
     public HTTPCacheResponse() {
         stale = false;
         bodyStream = null;
         headerMap = null;
+        expires = 0;
+        staleUntil = 0;
     }
 
     public boolean isStale() throws NoCacheAvailableException {
@@ -38,6 +42,29 @@ public class HTTPCacheResponse {
         this.headerMap = headerMap;
     }
 
+    public void setExpires(long expires) {
+        this.expires = expires;
+    }
+
+    /**
+     * @return The time the cached data stops being fresh, in epoch millis
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    public void setStaleUntil(long staleUntil) {
+        this.staleUntil = staleUntil;
+    }
+
+    /**
+     * @return The time until which the cached data may still be served while
+     * it is revalidated (Cache-Control stale-while-revalidate), in epoch millis
+     */
+    public long getStaleUntil() {
+        return staleUntil;
+    }
+
     public InputStream getBody() {
         return bodyStream;
     }
@@ -1,11 +1,20 @@
 package the.topmusic.HTTP;
 
+import android.content.Context;
+
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
-import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
@@ -13,6 +22,15 @@ import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import the.topmusic.utils.PreferenceUtils;
 
 /**
  * Created by IntelliJ IDEA.
@@ -22,37 +40,240 @@ import org.apache.http.params.HttpParams;
  * To change this template use File | Settings | File Templates.
  */
 public class HTTPClientFarm {
-    private static final int SOCKET_TIMEOUT = 60000;
-    private static final int CONNECTION_TIMEOUT = 20000;
+    /**
+     * Defaults of the pool settings, also used by {@link PreferenceUtils}
+     */
+    public static final int SOCKET_TIMEOUT = 60000;
+    public static final int CONNECTION_TIMEOUT = 20000;
+    public static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+    public static final int MAX_CONNECTIONS_TOTAL = 20;
+    /**
+     * Idle timeout and TTL of pooled connections, in seconds
+     */
+    public static final int IDLE_TIMEOUT = 30;
+    public static final int CONNECTION_TTL = 60;
+    public static final int SOCKET_BUFFER_SIZE = 8192;
+    public static final boolean TCP_NODELAY = true;
+    /**
+     * How often the pool is swept for idle and expired connections, in seconds
+     */
+    private static final int EVICTION_INTERVAL = 5;
 
-    private static HTTPClientFarm instance = null;
-    private ClientConnectionManager connManager;
-    private DefaultHttpClient client;
+    private static volatile HTTPClientFarm instance = null;
+    private final CountingConnManager connManager;
+    private final DefaultHttpClient client;
+    private final ScheduledExecutorService evictor;
+    private final int maxConnectionsTotal;
 
     public HTTPClientFarm() {
-        HttpParams httpParams = createDefaultHttpParams();
+        this(MAX_CONNECTIONS_PER_ROUTE, MAX_CONNECTIONS_TOTAL, CONNECTION_TIMEOUT, SOCKET_TIMEOUT,
+                IDLE_TIMEOUT, CONNECTION_TTL, SOCKET_BUFFER_SIZE, TCP_NODELAY);
+    }
+
+    private HTTPClientFarm(PreferenceUtils preferences) {
+        this(preferences.getHttpMaxConnectionsPerRoute(), preferences.getHttpMaxConnectionsTotal(),
+                preferences.getHttpConnectionTimeout(), preferences.getHttpSocketTimeout(),
+                preferences.getHttpIdleTimeout(), preferences.getHttpConnectionTTL(),
+                preferences.getHttpSocketBufferSize(), preferences.httpTcpNoDelay());
+    }
+
+    private HTTPClientFarm(int maxPerRoute, int maxTotal, int connectionTimeout, int socketTimeout,
+                           final int idleTimeout, int connectionTTL, int socketBufferSize, boolean tcpNoDelay) {
+        maxConnectionsTotal = maxTotal;
+        HttpParams httpParams = createDefaultHttpParams(connectionTimeout, socketTimeout, socketBufferSize, tcpNoDelay);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxPerRoute));
+        ConnManagerParams.setMaxTotalConnections(httpParams, maxTotal);
+        // Waiting for a free connection counts against the connect timeout
+        ConnManagerParams.setTimeout(httpParams, connectionTimeout);
 
         SchemeRegistry registry = new SchemeRegistry();
         registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        registry.register(new Scheme("https", PlainSocketFactory.getSocketFactory(), 443));
-        connManager = new ThreadSafeClientConnManager(httpParams, registry);
-        client = new DefaultHttpClient(connManager, createDefaultHttpParams());
-        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy());
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        connManager = new CountingConnManager(httpParams, registry);
+        client = new DefaultHttpClient(connManager, httpParams);
+
+        // The pool has no absolute connection lifetime, so cap how long a
+        // connection may be kept alive after each use instead
+        final long ttlMillis = TimeUnit.SECONDS.toMillis(connectionTTL);
+        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                if (duration < 0 || duration > ttlMillis) {
+                    return ttlMillis;
+                }
+                return duration;
+            }
+        });
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HTTPClientFarm evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connManager.closeExpiredConnections();
+                connManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.SECONDS);
     }
 
-    private static HttpParams createDefaultHttpParams() {
+    private static HttpParams createDefaultHttpParams(int connectionTimeout, int socketTimeout,
+                                                      int socketBufferSize, boolean tcpNoDelay) {
         BasicHttpParams httpParams = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParams, CONNECTION_TIMEOUT);
-        HttpConnectionParams.setSoTimeout(httpParams, SOCKET_TIMEOUT);
+        HttpConnectionParams.setConnectionTimeout(httpParams, connectionTimeout);
+        HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
+        HttpConnectionParams.setTcpNoDelay(httpParams, tcpNoDelay);
+        HttpConnectionParams.setSocketBufferSize(httpParams, socketBufferSize);
         httpParams.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
         return httpParams;
     }
 
+    /**
+     * Builds the shared client from the connection settings in
+     * {@link PreferenceUtils}. Meant to be called once at start up, a client
+     * built before is shut down.
+     */
+    public static synchronized void configure(final Context context) {
+        HTTPClientFarm previous = instance;
+        instance = new HTTPClientFarm(PreferenceUtils.getInstace(context));
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
     public static HttpClient getThreadSafeClient() {
-        if (instance == null) {
-            instance = new HTTPClientFarm();
+        return getInstance().client;
+    }
+
+    private static HTTPClientFarm getInstance() {
+        HTTPClientFarm farm = instance;
+        if (farm == null) {
+            synchronized (HTTPClientFarm.class) {
+                farm = instance;
+                if (farm == null) {
+                    farm = new HTTPClientFarm();
+                    instance = farm;
+                }
+            }
+        }
+        return farm;
+    }
+
+    /**
+     * @return A snapshot of the connection pool of the shared client
+     */
+    public static PoolStats getPoolStats() {
+        HTTPClientFarm farm = getInstance();
+        int leased = farm.connManager.leased.get();
+        int available = Math.max(0, farm.connManager.getConnectionsInPool() - leased);
+        return new PoolStats(leased, available, farm.connManager.pending.get(), farm.maxConnectionsTotal);
+    }
+
+    private void shutdown() {
+        evictor.shutdown();
+        connManager.shutdown();
+    }
+
+    /**
+     * Counts the connections handed out by the pool and the requests waiting
+     * for one, which the pool itself does not expose.
+     */
+    private static class CountingConnManager extends ThreadSafeClientConnManager {
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        public CountingConnManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    pending.incrementAndGet();
+                    try {
+                        ManagedClientConnection connection = request.getConnection(timeout, unit);
+                        leased.incrementAndGet();
+                        return connection;
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+            try {
+                super.releaseConnection(conn, validDuration, timeUnit);
+            } finally {
+                leased.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Connection pool usage at one point in time
+     */
+    public static class PoolStats {
+        private final int leased;
+        private final int available;
+        private final int pending;
+        private final int max;
+
+        private PoolStats(int leased, int available, int pending, int max) {
+            this.leased = leased;
+            this.available = available;
+            this.pending = pending;
+            this.max = max;
+        }
+
+        /**
+         * @return The connections currently executing a request
+         */
+        public int getLeased() {
+            return leased;
+        }
+
+        /**
+         * @return The idle connections kept alive for reuse
+         */
+        public int getAvailable() {
+            return available;
         }
 
-        return instance.client;
+        /**
+         * @return The requests waiting for a connection
+         */
+        public int getPending() {
+            return pending;
+        }
+
+        /**
+         * @return The maximum number of connections in the pool
+         */
+        public int getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "[leased: " + leased + "; pending: " + pending + "; available: " + available
+                    + "; max: " + max + "]";
+        }
     }
 }
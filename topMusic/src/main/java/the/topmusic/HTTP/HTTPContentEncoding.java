@@ -0,0 +1,164 @@
+package the.topmusic.HTTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers for the gzip and deflate content codings, used both on the wire
+ * and for bodies kept compressed in {@link HTTPCache}.
+ */
+public class HTTPContentEncoding {
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String GZIP = "gzip";
+    /**
+     * Bodies smaller than this are not worth compressing at rest
+     */
+    private static final int MIN_COMPRESS_SIZE = 1024;
+
+    private HTTPContentEncoding() {
+    }
+
+    /**
+     * @return The value of the header {@code name} in {@code headers},
+     * matched case-insensitively, or null
+     */
+    public static String headerValue(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return True if {@code encoding} is a coding this class can decode
+     */
+    public static boolean isSupported(String encoding) {
+        return encoding != null
+                && (GZIP.equalsIgnoreCase(encoding.trim()) || "deflate".equalsIgnoreCase(encoding.trim()));
+    }
+
+    /**
+     * Wraps {@code in} so it yields the decoded body. Once the decoder reaches
+     * the end of the body, whatever follows in {@code in} is read and thrown
+     * away, so a tee into the cache or the connection below sees its EOF.
+     *
+     * @param encoding The Content-Encoding of the body, may be null
+     * @return {@code in} itself if the body is not encoded
+     */
+    public static InputStream decode(InputStream in, String encoding) throws IOException {
+        if (in == null || !isSupported(encoding)) {
+            return in;
+        }
+        final InputStream decoder = GZIP.equalsIgnoreCase(encoding.trim())
+                ? new GZIPInputStream(in) : new InflaterInputStream(in);
+        return new DrainingInputStream(decoder, in);
+    }
+
+    /**
+     * @return The decoded {@code data}, or {@code data} itself if it is not encoded
+     */
+    public static byte[] decode(byte[] data, String encoding) throws IOException {
+        if (data == null || !isSupported(encoding)) {
+            return data;
+        }
+        final InputStream in = decode(new ByteArrayInputStream(data), encoding);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        final byte[] buffer = new byte[4096];
+        int readBytes;
+        try {
+            while ((readBytes = in.read(buffer)) != -1) {
+                out.write(buffer, 0, readBytes);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return True if a body of {@code length} bytes with these headers is
+     * text that is sent uncompressed and worth gzipping before it is stored
+     */
+    public static boolean shouldCompress(Map<String, String> headers, int length) {
+        if (length < MIN_COMPRESS_SIZE) {
+            return false;
+        }
+        final String encoding = headerValue(headers, CONTENT_ENCODING);
+        if (encoding != null && !"identity".equalsIgnoreCase(encoding.trim())) {
+            return false;
+        }
+        final String contentType = headerValue(headers, "Content-Type");
+        if (contentType == null) {
+            return false;
+        }
+        final String type = contentType.toLowerCase(Locale.US);
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+                || type.contains("javascript");
+    }
+
+    public static byte[] gzip(byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        final GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the raw stream to its end once the decoder is done with it
+     */
+    private static final class DrainingInputStream extends FilterInputStream {
+        private final InputStream raw;
+
+        private DrainingInputStream(InputStream decoder, InputStream raw) {
+            super(decoder);
+            this.raw = raw;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1) {
+                drain();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int readBytes = super.read(buffer, offset, count);
+            if (readBytes == -1) {
+                drain();
+            }
+            return readBytes;
+        }
+
+        private void drain() throws IOException {
+            final byte[] buffer = new byte[512];
+            while (raw.read(buffer) != -1) {
+                // Trailing bytes after the compressed body
+            }
+        }
+    }
+}
@@ -10,7 +10,6 @@ import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.message.BasicHeader;
@@ -22,12 +21,45 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static the.topmusic.utils.DiskCacheUtils.NoCacheAvailableException;
 
 public class HttpConnect {
+    /**
+     * An entry fetched less than this many milliseconds ago is not
+     * revalidated in the background again. Responses without freshness
+     * information, or with no-cache, are stale as soon as they are stored,
+     * and a listener reloading on every update would otherwise keep
+     * revalidating them.
+     */
+    private static final long MIN_REVALIDATE_AGE = 5000;
+    /**
+     * Runs the conditional GETs of stale entries that were served right away
+     */
+    private static final ExecutorService sRevalidateExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * URIs with a background revalidation queued or running, so a list that
+     * is reloaded several times does not queue the same request again
+     */
+    private static final Map<URI, Boolean> sRevalidating = new ConcurrentHashMap<URI, Boolean>();
+    /**
+     * Buffered network fetches in progress, keyed by URI. A request for a URI
+     * that is already being fetched waits for that fetch and shares its
+     * result, instead of downloading and writing the cache a second time.
+     */
+    private static final ConcurrentMap<URI, InFlightFetch> sInFlight = new ConcurrentHashMap<URI, InFlightFetch>();
+    private static final AtomicInteger sNetworkFetchCount = new AtomicInteger();
+    private static final AtomicInteger sCoalescedCount = new AtomicInteger();
     private final Map<String, Header> headerMap;
     private HTTPCache cache;
     private URI uri;
@@ -46,8 +78,12 @@ public class HttpConnect {
     }
 
     public HttpConnect(URI url) throws NoCacheAvailableException {
+        this(url, HTTPCache.getDefaultCache());
+    }
+
+    private HttpConnect(URI url, HTTPCache cache) {
         this.uri = url;
-        cache = HTTPCache.getDefaultCache();
+        this.cache = cache;
         headerMap = new LinkedHashMap<String, Header>();
     }
 
@@ -89,12 +125,14 @@ public class HttpConnect {
 
         final HTTPCacheResponse cacheResponse = this.cache.get(uri, this.cachePolicy);
         if (cacheResponse != null) {
-            Map<String, String> headers = cacheResponse.getHeaders();
-            for (String key : headers.keySet()) {
-                Header header = new BasicHeader(key, headers.get(key));
-                headerMap.put(key, header);
-            }
+            loadCachedHeaders(cacheResponse);
             responseStream = cacheResponse.getBody();
+
+            if (responseStream != null && cacheResponse.isStale() && mayRevalidateInBackground(cacheResponse)) {
+                // Hand out the stale body now and refresh the entry behind the caller's back
+                revalidateInBackground(cacheResponse);
+                return true;
+            }
         }
 
         // If no cache, or Policy require load from network even cached
@@ -104,114 +142,351 @@ public class HttpConnect {
                 && cacheResponse.isStale())
                 || (cachePolicy & HTTPCache.HTTPFallbackToCacheIfLoadFailsCachePolicy) != 0) {
 
-            HttpClient httpClient = HTTPClientFarm.getThreadSafeClient();
+            if (downloadToFile) {
+                // The body goes straight to one reader, it cannot be shared
+                responseStream = fetch(cacheResponse, true);
+            } else {
+                responseStream = fetchShared(cacheResponse);
+            }
+        }
 
-            HttpGet httpGet = null;
-            HttpPost httpPost = null;
+        return responseStream != null;
+    }
 
+    private InputStream fetch(HTTPCacheResponse cacheResponse, boolean downloadToFile) throws HTTPServiceException {
+        sNetworkFetchCount.incrementAndGet();
 
-            httpGet = new HttpGet(uri);
+        HttpClient httpClient = HTTPClientFarm.getThreadSafeClient();
 
-            if (cacheResponse != null) {
-                // If cached, ask server if modified
-                if ((cachePolicy & HTTPCache.HTTPAskServerIfModifiedCachePolicy) != 0
-                        || (cachePolicy & HTTPCache.HTTPAskServerIfModifiedWhenStaleCachePolicy) != 0) {
-                    Header etag = headerMap.get("Etag");
-                    if (etag != null) {
-                        httpGet.setHeader("If-None-Match", etag.getValue());
-                    }
+        HttpGet httpGet = null;
+        HttpPost httpPost = null;
 
-                    Header lastModified = headerMap.get("Last-Modified");
-                    if (lastModified != null) {
-                        httpGet.setHeader("If-Modified-Since", lastModified.getValue());
-                    }
+
+        httpGet = createConditionalGet(cacheResponse);
+
+
+        try {
+            HttpResponse httpResponse;
+            if (httpGet != null) {
+                httpResponse = httpClient.execute(httpGet);
+            } else {
+                httpResponse = httpClient.execute(httpPost);
+            }
+            return handleResponse(httpResponse, cacheResponse, downloadToFile);
+        } catch (ClientProtocolException exception) {
+            resetContent();
+            exception.printStackTrace();
+            throw new HTTPServiceException(exception.getMessage());
+        } catch (IOException ignored) {
+            resetContent();
+            ignored.printStackTrace();
+            throw new HTTPServiceException("网络异常! " + ignored.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            resetContent();
+            throw new HTTPServiceException("网络异常! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Buffered fetch that joins a fetch of the same URI already in progress,
+     * or runs it and publishes the result to whoever joined in the meantime.
+     */
+    private InputStream fetchShared(HTTPCacheResponse cacheResponse) throws HTTPServiceException {
+        final InFlightFetch fetch = new InFlightFetch();
+        final InFlightFetch leader = sInFlight.putIfAbsent(uri, fetch);
+        if (leader != null) {
+            return joinFetch(leader, cacheResponse);
+        }
+
+        try {
+            InputStream stream = fetch(cacheResponse, false);
+            if (responseData != null) {
+                fetch.headers = new LinkedHashMap<String, Header>(headerMap);
+                fetch.data = responseData;
+            } else {
+                fetch.notModified = stream != null;
+            }
+            return stream;
+        } catch (HTTPServiceException e) {
+            fetch.error = e;
+            throw e;
+        } finally {
+            // Later requests find the result in the cache
+            sInFlight.remove(uri, fetch);
+            fetch.done.countDown();
+        }
+    }
+
+    private InputStream joinFetch(InFlightFetch leader, HTTPCacheResponse cacheResponse) throws HTTPServiceException {
+        try {
+            leader.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resetContent();
+            throw new HTTPServiceException("网络异常! " + e.getMessage());
+        }
+
+        if (leader.error != null) {
+            resetContent();
+            throw leader.error;
+        }
+        if (leader.data != null) {
+            sCoalescedCount.incrementAndGet();
+            headerMap.putAll(leader.headers);
+            responseData = leader.data;
+            return new ByteArrayInputStream(responseData);
+        }
+        if (leader.notModified && cacheResponse != null && cacheResponse.getBody() != null) {
+            // The leader already refreshed the stored header
+            sCoalescedCount.incrementAndGet();
+            return cacheResponse.getBody();
+        }
+        // Nothing we can use, e.g. the leader only had to revalidate an entry we do not have
+        return fetch(cacheResponse, false);
+    }
+
+    /**
+     * @return The number of requests that went to the network
+     */
+    public static int getNetworkFetchCount() {
+        return sNetworkFetchCount.get();
+    }
+
+    /**
+     * @return The number of requests served by joining another request's
+     * network fetch of the same URI
+     */
+    public static int getCoalescedRequestCount() {
+        return sCoalescedCount.get();
+    }
+
+    private void loadCachedHeaders(HTTPCacheResponse cacheResponse) {
+        Map<String, String> headers = cacheResponse.getHeaders();
+        if (headers == null) {
+            return;
+        }
+        for (String key : headers.keySet()) {
+            Header header = new BasicHeader(key, headers.get(key));
+            headerMap.put(key, header);
+        }
+        if (HTTPContentEncoding.isSupported(HTTPContentEncoding.headerValue(headers, HTTPContentEncoding.CONTENT_ENCODING))) {
+            // The cache hands out the body decoded
+            removeEncodingHeaders();
+        }
+    }
+
+    /**
+     * Drops the headers that describe the encoded body once it is decoded
+     */
+    private void removeEncodingHeaders() {
+        Iterator<String> names = headerMap.keySet().iterator();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (HTTPContentEncoding.CONTENT_ENCODING.equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name)) {
+                names.remove();
+            }
+        }
+    }
+
+    private HttpGet createConditionalGet(HTTPCacheResponse cacheResponse) {
+        HttpGet httpGet = new HttpGet(uri);
+        httpGet.setHeader("Accept-Encoding", HTTPContentEncoding.ACCEPT_ENCODING);
+
+        if (cacheResponse != null) {
+            // If cached, ask server if modified
+            if ((cachePolicy & HTTPCache.HTTPAskServerIfModifiedCachePolicy) != 0
+                    || (cachePolicy & HTTPCache.HTTPAskServerIfModifiedWhenStaleCachePolicy) != 0
+                    || (cachePolicy & HTTPCache.HTTPReturnStaleWhileRevalidateCachePolicy) != 0) {
+                Header etag = headerMap.get("Etag");
+                if (etag != null) {
+                    httpGet.setHeader("If-None-Match", etag.getValue());
+                }
+
+                Header lastModified = headerMap.get("Last-Modified");
+                if (lastModified != null) {
+                    httpGet.setHeader("If-Modified-Since", lastModified.getValue());
                 }
             }
+        }
+        return httpGet;
+    }
 
+    /**
+     * A stale entry may be served while it is revalidated if the request asked
+     * for it, or if the server allowed it with stale-while-revalidate and the
+     * window has not run out yet.
+     */
+    private boolean mayRevalidateInBackground(HTTPCacheResponse cacheResponse) {
+        if ((cachePolicy & HTTPCache.HTTPAskServerIfModifiedCachePolicy) != 0) {
+            return false;
+        }
+        return (cachePolicy & HTTPCache.HTTPReturnStaleWhileRevalidateCachePolicy) != 0
+                || cacheResponse.getStaleUntil() > System.currentTimeMillis();
+    }
 
-            ResponseHandler<InputStream> handler = new ResponseHandler<InputStream>() {
+    private void revalidateInBackground(final HTTPCacheResponse cacheResponse) {
+        if (System.currentTimeMillis() - cache.getFetchTime(cacheResponse) < MIN_REVALIDATE_AGE) {
+            return;
+        }
+        if (sRevalidating.put(uri, Boolean.TRUE) != null) {
+            return;
+        }
+        final HttpConnect revalidation = new HttpConnect(uri, cache);
+        revalidation.cachePolicy = cachePolicy;
+        sRevalidateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    revalidation.revalidate(cacheResponse);
+                } finally {
+                    sRevalidating.remove(revalidation.uri);
+                }
+            }
+        });
+    }
 
-                public InputStream handleResponse(HttpResponse httpResponse) throws ClientProtocolException {
-                    int status = httpResponse.getStatusLine().getStatusCode();
-                    HttpEntity entity = httpResponse.getEntity();
+    /**
+     * Sends the conditional GET for a stale entry and stores the result. The
+     * cache's listeners are told if the server returned a different body or
+     * validators, not for every 200: servers that ignore the conditional
+     * headers resend the same content each time.
+     */
+    private void revalidate(HTTPCacheResponse cacheResponse) {
+        loadCachedHeaders(cacheResponse);
+        sNetworkFetchCount.incrementAndGet();
+        try {
+            HttpResponse httpResponse = HTTPClientFarm.getThreadSafeClient().execute(createConditionalGet(cacheResponse));
+            if (httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                handleResponse(httpResponse, cacheResponse, false);
+                return;
+            }
+            // The caller was handed the cached body, read it again to compare
+            byte[] cachedData = readCachedBody();
+            handleResponse(httpResponse, cacheResponse, false);
+            if (!Arrays.equals(cachedData, responseData)
+                    || validatorChanged(cacheResponse, httpResponse, "ETag")
+                    || validatorChanged(cacheResponse, httpResponse, "Last-Modified")) {
+                cache.notifyCacheUpdated(uri);
+            }
+        } catch (IOException e) {
+            Log.e(getClass().toString(), "Revalidation failed: " + uri + " - " + e);
+        }
+    }
 
-                    InputStream responseStream = null;
-                    if (status == HttpStatus.SC_NOT_MODIFIED) {
-                        try {
-                            cache.updateHeader(uri, cacheResponse);
-                        } catch (NoCacheAvailableException e) {
-                            e.printStackTrace();    //To change body of catch statement use File | Settings | File Templates.
-                        } catch (IOException e) {
-                            e.printStackTrace();    //To change body of catch statement use File | Settings | File Templates.
-                        }
-                    } else if (status == HttpStatus.SC_OK && null != entity) {
-                        try {
-                            Map<String, String> cachedHeaders = new LinkedHashMap<String, String>();
-                            Header[] headers = httpResponse.getAllHeaders();
-                            for (Header header : headers) {
-                                headerMap.put(header.getName(), header);
-                                cachedHeaders.put(header.getName(), header.getValue());
-                            }
+    /**
+     * @return The decoded body cached for {@link #uri}, or null if there is
+     * none or it cannot be read
+     */
+    private byte[] readCachedBody() {
+        HTTPCacheResponse cached = cache.get(uri, HTTPCache.HTTPOnlyLoadIfNotCachedCachePolicy);
+        if (cached == null || cached.getBody() == null) {
+            return null;
+        }
+        try {
+            return readStreamContent(cached.getBody());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                cached.getBody().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
 
-                            InputStream contentStream = entity.getContent();
-                            if (downloadToFile) {
-                                // TODO: the maxAge should come from configuration
-                                try {
-                                    cache.put(uri, cachedHeaders, contentStream, 3600);
-                                    HTTPCacheResponse responseCached = cache.get(uri, HTTPCache.HTTPOnlyLoadIfNotCachedCachePolicy);
-                                    if (responseCached != null) {
-                                        responseStream = responseCached.getBody();
-                                    }
-                                } catch (NoCacheAvailableException e) {
-                                    e.printStackTrace();
-                                }
-                            } else {
-                                responseData = readStreamContent(contentStream);
-                                if ((cachePolicy & HTTPCache.HTTPDoNotWriteToCacheCachePolicy) == 0) {
-                                    try {
-                                        cache.put(uri, cachedHeaders, responseData, 3600);
-                                    } catch (NoCacheAvailableException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                                responseStream = new ByteArrayInputStream(responseData);
+    private static boolean validatorChanged(HTTPCacheResponse cacheResponse, HttpResponse httpResponse, String name) {
+        String cached = HTTPContentEncoding.headerValue(cacheResponse.getHeaders(), name);
+        Header header = httpResponse.getFirstHeader(name);
+        String sent = header != null ? header.getValue() : null;
+        return cached == null ? sent != null : !cached.equals(sent);
+    }
+
+    /**
+     * Processes the response of a network fetch. When downloading to file the
+     * returned stream is still backed by the open connection: it is teed into
+     * the cache while the caller reads it, and the connection is released
+     * when the caller reaches EOF or closes it. In every other case the entity
+     * has been fully consumed by the time this returns.
+     */
+    private InputStream handleResponse(HttpResponse httpResponse, HTTPCacheResponse cacheResponse, boolean downloadToFile) throws ClientProtocolException {
+        int status = httpResponse.getStatusLine().getStatusCode();
+        HttpEntity entity = httpResponse.getEntity();
+
+        InputStream responseStream = null;
+        boolean entityHandedOff = false;
+        try {
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                try {
+                    cache.updateHeader(uri, cacheResponse);
+                } catch (NoCacheAvailableException e) {
+                    e.printStackTrace();    //To change body of catch statement use File | Settings | File Templates.
+                } catch (IOException e) {
+                    e.printStackTrace();    //To change body of catch statement use File | Settings | File Templates.
+                }
+                // Still valid, serve what we have
+                responseStream = cacheResponse.getBody();
+            } else if (status == HttpStatus.SC_OK && null != entity) {
+                try {
+                    Map<String, String> cachedHeaders = new LinkedHashMap<String, String>();
+                    Header[] headers = httpResponse.getAllHeaders();
+                    for (Header header : headers) {
+                        headerMap.put(header.getName(), header);
+                        cachedHeaders.put(header.getName(), header.getValue());
+                    }
+
+                    String encoding = HTTPContentEncoding.headerValue(cachedHeaders, HTTPContentEncoding.CONTENT_ENCODING);
+                    if (HTTPContentEncoding.isSupported(encoding)) {
+                        removeEncodingHeaders();
+                    }
+
+                    InputStream contentStream = entity.getContent();
+                    if (downloadToFile) {
+                        responseStream = contentStream;
+                        if ((cachePolicy & HTTPCache.HTTPDoNotWriteToCacheCachePolicy) == 0) {
+                            // TODO: the maxAge should come from configuration
+                            try {
+                                responseStream = cache.putStreaming(uri, cachedHeaders, contentStream, 3600);
+                            } catch (NoCacheAvailableException e) {
+                                e.printStackTrace();
                             }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            throw new ClientProtocolException("服务器异常！");
                         }
+                        // The cache keeps the body as it came over the wire
+                        responseStream = HTTPContentEncoding.decode(responseStream, encoding);
+                        entityHandedOff = true;
                     } else {
-                        Log.e(HttpConnect.this.getClass().toString(), "HTTP error: " + httpResponse.getStatusLine());
-                        Log.e(HttpConnect.this.getClass().toString(), "Request URL: " + uri.toString());
-                        throw new ClientProtocolException("服务器异常！");
+                        byte[] rawData = readStreamContent(contentStream);
+                        responseData = HTTPContentEncoding.decode(rawData, encoding);
+                        if ((cachePolicy & HTTPCache.HTTPDoNotWriteToCacheCachePolicy) == 0) {
+                            try {
+                                cache.put(uri, cachedHeaders, rawData, 3600);
+                            } catch (NoCacheAvailableException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                        responseStream = new ByteArrayInputStream(responseData);
                     }
-
-                    return responseStream;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    throw new ClientProtocolException("服务器异常！");
                 }
-            };
-
-            try {
-                if (httpGet != null) {
-                    responseStream = httpClient.execute(httpGet, handler);
-                } else {
-                    responseStream = httpClient.execute(httpPost, handler);
+            } else {
+                Log.e(getClass().toString(), "HTTP error: " + httpResponse.getStatusLine());
+                Log.e(getClass().toString(), "Request URL: " + uri.toString());
+                throw new ClientProtocolException("服务器异常！");
+            }
+        } finally {
+            if (!entityHandedOff && entity != null) {
+                // Release the connection back to the pool
+                try {
+                    entity.consumeContent();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (ClientProtocolException exception) {
-                resetContent();
-                exception.printStackTrace();
-                throw new HTTPServiceException(exception.getMessage());
-            } catch (IOException ignored) {
-                resetContent();
-                ignored.printStackTrace();
-                throw new HTTPServiceException("网络异常! " + ignored.getMessage());
-            } catch (Exception e) {
-                e.printStackTrace();
-                resetContent();
-                throw new HTTPServiceException("网络异常! " + e.getMessage());
             }
         }
 
-        return responseStream != null;
+        return responseStream;
     }
 
     private void resetContent() {
@@ -283,4 +558,16 @@ public class HttpConnect {
 
         return outputStream.toByteArray();
     }
-}
\ No newline at end of file
+
+    /**
+     * The outcome of a buffered network fetch, published to the requests
+     * that joined it once {@link #done} is released.
+     */
+    private static final class InFlightFetch {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Map<String, Header> headers;
+        private byte[] data;
+        private boolean notModified;
+        private HTTPServiceException error;
+    }
+}
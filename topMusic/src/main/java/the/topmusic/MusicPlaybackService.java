@@ -46,9 +46,11 @@ import android.util.Base64;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Random;
-import java.util.TreeSet;
 
 import the.topmusic.appwidgets.AppWidgetLarge;
 import the.topmusic.appwidgets.AppWidgetLargeAlternate;
@@ -58,8 +60,8 @@ import the.topmusic.cache.ImageCache;
 import the.topmusic.cache.ImageFetcher;
 import the.topmusic.model.Song;
 import the.topmusic.provider.FavoritesStore;
+import the.topmusic.provider.QueueStore;
 import the.topmusic.provider.RecentStore;
-import the.topmusic.utils.Lists;
 import the.topmusic.utils.MusicUtils;
 import the.topmusic.utils.ParcelableUtils;
 import the.topmusic.utils.PreferenceUtils;
@@ -245,6 +247,14 @@ public class MusicPlaybackService extends Service {
      * Indicates to fade the volume back up
      */
     private static final int FADEUP = 7;
+    /**
+     * Indicates to read back the next page of the queue
+     */
+    private static final int LOAD_QUEUE = 8;
+    /**
+     * Indicates to drop the tracks that could not be read back from the queue
+     */
+    private static final int DROP_UNREADABLE = 9;
     /**
      * Idle time before stopping the foreground notfication (1 minute)
      */
@@ -253,6 +263,23 @@ public class MusicPlaybackService extends Service {
      * The max size allowed for the track history
      */
     private static final int MAX_HISTORY_SIZE = 100;
+    /**
+     * Number of tracks read back from the saved queue at once
+     */
+    private static final int QUEUE_PAGE_SIZE = 50;
+    /**
+     * The smallest the playlist array is shrunk to
+     */
+    private static final int MIN_PLAYLIST_CAPACITY = 16;
+    /**
+     * Handle of a track not read back from the saved queue yet
+     */
+    private static final int NO_SONG = -1;
+    /**
+     * Handle of a track that could not be read back from the saved queue, and
+     * is about to be dropped from it
+     */
+    private static final int UNREADABLE_SONG = -2;
     /**
      * The columns used to retrieve any info from the current track
      */
@@ -273,20 +300,11 @@ public class MusicPlaybackService extends Service {
     /**
      * Keeps a mapping of the track history
      */
-    private static final LinkedList<Integer> mHistory = Lists.newLinkedList();
+    private static final PlayHistory mHistory = new PlayHistory();
     /**
      * Used to shuffle the tracks
      */
     private static final Shuffler mShuffler = new Shuffler();
-    /**
-     * Used to save the queue as reverse hexadecimal numbers, which we can
-     * generate faster than normal decimal or // hexadecimal numbers, which in
-     * turn allows us to save the playlist // more often without worrying too
-     * much about performance
-     */
-    private static final char HEX_DIGITS[] = new char[]{
-            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
-    };
     /**
      * Service stub
      */
@@ -451,8 +469,16 @@ public class MusicPlaybackService extends Service {
     private int mNextPlayPos = -1;
     private int mOpenFailedCounter = 0;
     private int mMediaMountedCount = 0;
+    // The track playing when the card was ejected, and how far it got
+    private Song mEjectedSong = null;
+    private long mEjectedPosition = 0;
     private int mServiceStartId = -1;
-    private Song[] mPlayList = null;
+    // Where LOAD_QUEUE reads the queue back from next
+    private int mQueueLoadPosition = 0;
+    // The queue, as handles into mSongTable
+    private int[] mPlayList = null;
+    private final SongTable mSongTable = new SongTable();
+    private final ShuffleOrder mShuffleOrder = new ShuffleOrder();
     private Song[] mAutoShuffleList = null;
     private MusicPlayerHandler mPlayerHandler;
     private DelayedHandler mDelayedStopHandler;
@@ -473,6 +499,10 @@ public class MusicPlaybackService extends Service {
      * Favorites database
      */
     private FavoritesStore mFavoritesCache;
+    /**
+     * The queue as saved
+     */
+    private QueueStore mQueueStore;
 
     public static boolean isOnlineSong(Song song) {
         return song != null && song.mURL != null && !song.mURL.isEmpty();
@@ -499,6 +529,7 @@ public class MusicPlaybackService extends Service {
     public boolean onUnbind(final Intent intent) {
         mServiceInUse = false;
         saveQueue(true);
+        saveShuffleOrder();
 
         if (mIsSupposedToBePlaying || mPausedByTransientLossOfFocus) {
             // Something is currently playing, or will be playing once
@@ -538,6 +569,7 @@ public class MusicPlaybackService extends Service {
         // Initialize the favorites and recents databases
         mRecentsCache = RecentStore.getInstance(this);
         mFavoritesCache = FavoritesStore.getInstance(this);
+        mQueueStore = QueueStore.getInstance(this);
 
         // Initialze the notification helper
         mNotificationHelper = new NotificationHelper(this);
@@ -603,7 +635,7 @@ public class MusicPlaybackService extends Service {
         mWakeLock.setReferenceCounted(false);
 
         // Bring the queue back
-        reloadQueue();
+        reloadQueue(false);
         notifyChange(QUEUE_CHANGED);
         notifyChange(META_CHANGED);
 
@@ -643,6 +675,7 @@ public class MusicPlaybackService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        saveShuffleOrder();
         // Remove any sound effects
         if (TopMusicUtils.hasGingerbread()) {
             final Intent audioEffectsIntent = new Intent(
@@ -814,15 +847,34 @@ public class MusicPlaybackService extends Service {
                     final String action = intent.getAction();
                     if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
                         saveQueue(true);
+                        saveShuffleOrder();
                         mQueueIsSaveable = false;
+                        synchronized (MusicPlaybackService.this) {
+                            mEjectedSong = getCurrentSong();
+                            mEjectedPosition = position();
+                        }
+                        // Reading the queue back can take a while, and is kept
+                        // in order with a mount that follows
+                        mPlayerHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                detachQueueStore();
+                            }
+                        });
                         closeExternalStorageFiles(intent.getData().getPath());
                     } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
                         mMediaMountedCount++;
-                        mCardId = getCardId();
-                        reloadQueue();
-                        mQueueIsSaveable = true;
-                        notifyChange(QUEUE_CHANGED);
-                        notifyChange(META_CHANGED);
+                        mPlayerHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mCardId = getCardId();
+                                mQueueStore.setEnabled(true);
+                                reloadQueue(true);
+                                mQueueIsSaveable = true;
+                                notifyChange(QUEUE_CHANGED);
+                                notifyChange(META_CHANGED);
+                            }
+                        });
                     }
                 }
             };
@@ -875,6 +927,8 @@ public class MusicPlaybackService extends Service {
         }
         if (remove_status_icon) {
             mIsSupposedToBePlaying = false;
+            // Not on stop(false), which runs on every change of track
+            saveShuffleOrder();
         }
     }
 
@@ -904,11 +958,17 @@ public class MusicPlaybackService extends Service {
             } else if (mPlayPos > last) {
                 mPlayPos -= last - first + 1;
             }
+            for (int i = first; i <= last; i++) {
+                mSongTable.release(mPlayList[i]);
+            }
             final int num = mPlayListLen - last - 1;
-            for (int i = 0; i < num; i++) {
-                mPlayList[first + i] = mPlayList[last + 1 + i];
+            if (num > 0) {
+                System.arraycopy(mPlayList, last + 1, mPlayList, first, num);
             }
             mPlayListLen -= last - first + 1;
+            mQueueStore.remove(first, last);
+            mShuffleOrder.remove(first, last);
+            ensurePlayListCapacity(mPlayListLen);
 
             if (gotonext) {
                 if (mPlayListLen == 0) {
@@ -931,20 +991,47 @@ public class MusicPlaybackService extends Service {
         }
     }
 
+    /**
+     * @param songs Tracks, some of them may be null
+     * @return The tracks that are not null, {@code songs} itself if none is
+     */
+    private static Song[] withoutNulls(final Song[] songs) {
+        int count = 0;
+        for (final Song song : songs) {
+            if (song != null) {
+                count++;
+            }
+        }
+        if (count == songs.length) {
+            return songs;
+        }
+        final Song[] list = new Song[count];
+        count = 0;
+        for (final Song song : songs) {
+            if (song != null) {
+                list[count++] = song;
+            }
+        }
+        return list;
+    }
+
     /**
      * Adds a list to the playlist
      *
      * @param list     The list to add
      * @param position The position to place the tracks
      */
-    private void addToPlayList(final Song[] list, int position) {
+    private void addToPlayList(final Song[] songs, int position) {
+        // A missing track is left out, it could neither be saved nor played
+        final Song[] list = withoutNulls(songs);
         final int addlen = list.length;
         if (addlen <= 0) {
             return;
         }
 
         if (position < 0) {
-            mPlayListLen = 0;
+            releasePlayList();
+            mQueueStore.clear();
             position = 0;
         }
         ensurePlayListCapacity(mPlayListLen + addlen);
@@ -954,11 +1041,15 @@ public class MusicPlaybackService extends Service {
 
         final int tailsize = mPlayListLen - position;
         if (tailsize > 0) {
-            System.arraycopy(mPlayList, position + 1 - addlen, mPlayList, position + 1, tailsize);
+            System.arraycopy(mPlayList, position, mPlayList, position + addlen, tailsize);
         }
 
-        System.arraycopy(list, 0, mPlayList, position + 0, addlen);
+        for (int i = 0; i < addlen; i++) {
+            mPlayList[position + i] = mSongTable.acquire(list[i]);
+        }
         mPlayListLen += addlen;
+        mQueueStore.insert(position, list, 0, addlen);
+        mShuffleOrder.insert(position, addlen, mPlayPos);
         if (mPlayListLen == 0) {
             notifyChange(META_CHANGED);
         }
@@ -1002,8 +1093,10 @@ public class MusicPlaybackService extends Service {
             Song song = getCurrentSong();
             if (!isOnlineSong(song)) {
                 while (true) {
-                    if (openFile(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/"
-                            + song.mSongId)) {
+                    // A track that could not be read back is skipped like one
+                    // that does not open
+                    if (song != null && openFile(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI
+                            + "/" + song.mSongId)) {
                         break;
                     }
 
@@ -1020,6 +1113,7 @@ public class MusicPlaybackService extends Service {
                         mPlayPos = pos;
                         stop(false);
                         mPlayPos = pos;
+                        song = getCurrentSong();
                     } else {
                         mOpenFailedCounter = 0;
                         gotoIdleState();
@@ -1051,51 +1145,22 @@ public class MusicPlaybackService extends Service {
             }
             return mPlayPos;
         } else if (mShuffleMode == SHUFFLE_NORMAL) {
-            if (mPlayPos >= 0) {
-                mHistory.add(mPlayPos);
-            }
-            if (mHistory.size() > MAX_HISTORY_SIZE) {
-                mHistory.remove(0);
-            }
-            final int numTracks = mPlayListLen;
-            final int[] tracks = new int[numTracks];
-            for (int i = 0; i < numTracks; i++) {
-                tracks[i] = i;
-            }
-
-            final int numHistory = mHistory.size();
-            int numUnplayed = numTracks;
-            for (Integer aMHistory : mHistory) {
-                final int idx = aMHistory.intValue();
-                if (idx < numTracks && tracks[idx] >= 0) {
-                    numUnplayed--;
-                    tracks[idx] = -1;
-                }
-            }
-            if (numUnplayed <= 0) {
-                if (mRepeatMode == REPEAT_ALL || force) {
-                    numUnplayed = numTracks;
-                    for (int i = 0; i < numTracks; i++) {
-                        tracks[i] = i;
-                    }
-                } else {
+            int next = mShuffleOrder.next(mPlayPos);
+            if (next < 0) {
+                if (mRepeatMode != REPEAT_ALL && !force) {
                     return -1;
                 }
-            }
-            int skip = 0;
-            if (mShuffleMode == SHUFFLE_NORMAL || mShuffleMode == SHUFFLE_AUTO) {
-                skip = mShuffler.nextInt(numUnplayed);
-            }
-            int cnt = -1;
-            while (true) {
-                while (tracks[++cnt] < 0) {
-                }
-                skip--;
-                if (skip < 0) {
-                    break;
+                // Every track was played, start another round in another
+                // order. The current track opens it, so asking again gives
+                // the same answer.
+                mShuffleOrder.shuffle(mPlayListLen, mPlayPos);
+                next = mShuffleOrder.next(mPlayPos);
+                if (next < 0) {
+                    // The only track
+                    next = mPlayListLen > 0 ? 0 : -1;
                 }
             }
-            return cnt;
+            return next;
         } else if (mShuffleMode == SHUFFLE_AUTO) {
             doAutoShuffleUpdate();
             return mPlayPos + 1;
@@ -1119,8 +1184,11 @@ public class MusicPlaybackService extends Service {
     private void setNextTrack() {
         mNextPlayPos = getNextPosition(false);
         if (mNextPlayPos >= 0 && mPlayList != null) {
-            final Song song = mPlayList[mNextPlayPos];
-            if (isOnlineSong(song)) {
+            final Song song = getSong(mNextPlayPos);
+            if (song == null) {
+                // Could not be read back, opening it is left to gotoNext
+                mPlayer.setNextDataSource(null);
+            } else if (isOnlineSong(song)) {
                 mPlayer.setNextDataSource(song.mURL);
 
             } else {
@@ -1197,11 +1265,11 @@ public class MusicPlaybackService extends Service {
                 lookback /= 2;
             }
             mHistory.add(idx);
-            if (mHistory.size() > MAX_HISTORY_SIZE) {
-                mHistory.remove(0);
-            }
             ensurePlayListCapacity(mPlayListLen + 1);
-            mPlayList[mPlayListLen++] = mAutoShuffleList[idx];
+            mPlayList[mPlayListLen] = mSongTable.acquire(mAutoShuffleList[idx]);
+            mQueueStore.insert(mPlayListLen, mAutoShuffleList, idx, 1);
+            mShuffleOrder.insert(mPlayListLen, 1, mPlayPos);
+            mPlayListLen++;
             notify = true;
         }
         if (notify) {
@@ -1210,22 +1278,8 @@ public class MusicPlaybackService extends Service {
     }
 
     /**/
-    private boolean wasRecentlyUsed(final int idx, int lookbacksize) {
-        if (lookbacksize == 0) {
-            return false;
-        }
-        final int histsize = mHistory.size();
-        if (histsize < lookbacksize) {
-            lookbacksize = histsize;
-        }
-        final int maxidx = histsize - 1;
-        for (int i = 0; i < lookbacksize; i++) {
-            final long entry = mHistory.get(maxidx - i);
-            if (entry == idx) {
-                return true;
-            }
-        }
-        return false;
+    private boolean wasRecentlyUsed(final int idx, final int lookbacksize) {
+        return mHistory.contains(idx, lookbacksize);
     }
 
     /**
@@ -1234,19 +1288,28 @@ public class MusicPlaybackService extends Service {
      * @param size The size of the playlist
      */
     private void ensurePlayListCapacity(final int size) {
-        if (mPlayList == null || size > mPlayList.length) {
+        if (mPlayList == null || size > mPlayList.length
+                || mPlayList.length > MIN_PLAYLIST_CAPACITY && size * 4 < mPlayList.length) {
             // reallocate at 2x requested size so we don't
             // need to grow and copy the array for every
-            // insert
-            final Song[] newlist = new Song[size * 2];
+            // insert, nor shrink it for every removal
+            final int[] newlist = new int[Math.max(size * 2, MIN_PLAYLIST_CAPACITY)];
             if (mPlayList != null) {
-                final int len = mPlayList.length;
-                System.arraycopy(mPlayList, 0, newlist, 0, len);
+                System.arraycopy(mPlayList, 0, newlist, 0, Math.min(mPlayListLen, newlist.length));
             }
             mPlayList = newlist;
         }
-        // FIXME: shrink the array when the needed size is much smaller
-        // than the allocated size
+    }
+
+    /**
+     * Empties the playlist, but not the saved queue
+     */
+    private void releasePlayList() {
+        for (int i = 0; i < mPlayListLen; i++) {
+            mSongTable.release(mPlayList[i]);
+        }
+        mShuffleOrder.remove(0, mPlayListLen - 1);
+        mPlayListLen = 0;
     }
 
     /**
@@ -1312,7 +1375,8 @@ public class MusicPlaybackService extends Service {
     }
 
     /**
-     * Saves the queue
+     * Saves the state of the queue. The queue itself is saved by
+     * {@link QueueStore} as it changes.
      *
      * @param full True if the queue is full
      */
@@ -1323,32 +1387,15 @@ public class MusicPlaybackService extends Service {
 
         final SharedPreferences.Editor editor = mPreferences.edit();
         if (full) {
-            final StringBuilder q = new StringBuilder();
-            int len = mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                Song song = mPlayList[i];
-                q.append(Base64.encodeToString(ParcelableUtils.marshall(song), Base64.DEFAULT));
-                q.append(";");
-            }
-            editor.putString("queue", q.toString());
             editor.putInt("cardid", mCardId);
             if (mShuffleMode != SHUFFLE_NONE) {
-                len = mHistory.size();
-                q.setLength(0);
+                final int len = mHistory.size();
+                final ByteBuffer history = ByteBuffer.allocate(len * 4);
+                final IntBuffer entries = history.asIntBuffer();
                 for (int i = 0; i < len; i++) {
-                    int n = mHistory.get(i);
-                    if (n == 0) {
-                        q.append("0;");
-                    } else {
-                        while (n != 0) {
-                            final int digit = n & 0xf;
-                            n >>>= 4;
-                            q.append(HEX_DIGITS[digit]);
-                        }
-                        q.append(";");
-                    }
+                    entries.put(mHistory.get(i));
                 }
-                editor.putString("history", q.toString());
+                editor.putString("history", Base64.encodeToString(history.array(), Base64.NO_WRAP));
             }
         }
         editor.putInt("curpos", mPlayPos);
@@ -1360,96 +1407,164 @@ public class MusicPlaybackService extends Service {
         SharedPreferencesCompat.apply(editor);
     }
 
+    /**
+     * Saves the order the queue is shuffled in, if it changed. Writing it is
+     * as costly as the queue is long, so rather than with every edit it is
+     * saved when playback pauses or stops and when the service goes away. If
+     * the process is killed first, the order read back may be older than the
+     * queue, or not fit it and be shuffled again.
+     */
+    private void saveShuffleOrder() {
+        synchronized (this) {
+            if (mQueueIsSaveable && mShuffleMode == SHUFFLE_NORMAL && mShuffleOrder.isChanged()) {
+                mQueueStore.saveShuffleOrder(mShuffleOrder.getOrder(), mShuffleOrder.size());
+            }
+        }
+    }
+
     /**
      * Reloads the queue as the user left it the last time they stopped using
      * TopMusic
+     *
+     * @param remount True if the card was mounted again, the store missed
+     *                the edits made while it was not, and the queue and
+     *                position in memory are the latest
      */
-    private void reloadQueue() {
-        String q = null;
-        int id = mCardId;
-        if (mPreferences.contains("cardid")) {
-            id = mPreferences.getInt("cardid", ~mCardId);
-        }
-        if (id == mCardId) {
-            q = mPreferences.getString("queue", "");
-        }
-        int qlen = q != null ? q.length() : 0;
-        if (qlen > 1) {
-            String[] items = q.split(";");
-            int plen = items.length;
-            ensurePlayListCapacity(plen);
-            for (int i = 0; i < plen; i++) {
-                byte[] data = Base64.decode(items[i], Base64.DEFAULT);
-                mPlayList[i] = ParcelableUtils.unmarshall(data, Song.CREATOR);
-            }
-            mPlayListLen = plen;
-            final int pos = mPreferences.getInt("curpos", 0);
-            if (pos < 0 || pos >= mPlayListLen) {
-                mPlayListLen = 0;
-                return;
-            }
-            mPlayPos = pos;
-            mOpenFailedCounter = 20;
-            openCurrentAndNext();
-            if (!mPlayer.isInitialized()) {
-                mPlayListLen = 0;
+    private void reloadQueue(final boolean remount) {
+        synchronized (this) {
+            int id = mCardId;
+            if (mPreferences.contains("cardid")) {
+                id = mPreferences.getInt("cardid", ~mCardId);
+            }
+            if (id != mCardId || remount) {
+                // The saved queue is of another card or out of date, keep the
+                // one in memory
+                final Song[] queue = getQueue();
+                mQueueStore.replace(queue, queue.length);
+                if (mShuffleMode == SHUFFLE_NORMAL) {
+                    mQueueStore.saveShuffleOrder(mShuffleOrder.getOrder(), mShuffleOrder.size());
+                }
+                if (mPreferences.contains("queue")) {
+                    // Whatever an older version saved is out of date as well
+                    SharedPreferencesCompat.apply(mPreferences.edit().remove("queue"));
+                }
+                if (id == mCardId) {
+                    reopenCurrentTrack();
+                }
                 return;
             }
+            if (mPreferences.contains("queue")) {
+                importLegacyQueue();
+            }
+            // Only the keys for now, the tracks are read back as they are needed
+            // and in the background
+            final int plen = mQueueStore.loadKeys();
+            if (plen > 0) {
+                releasePlayList();
+                ensurePlayListCapacity(plen);
+                Arrays.fill(mPlayList, 0, plen, NO_SONG);
+                mPlayListLen = plen;
+                if (!mShuffleOrder.restore(mQueueStore.loadShuffleOrder(), plen)) {
+                    mShuffleOrder.shuffle(plen, -1);
+                }
+                mQueueLoadPosition = 0;
+                mPlayerHandler.removeMessages(LOAD_QUEUE);
+                mPlayerHandler.sendEmptyMessage(LOAD_QUEUE);
+                final int pos = mPreferences.getInt("curpos", 0);
+                if (pos < 0 || pos >= mPlayListLen) {
+                    releasePlayList();
+                    mQueueStore.clear();
+                    return;
+                }
+                mPlayPos = pos;
+                mOpenFailedCounter = 20;
+                openCurrentAndNext();
+                if (!mPlayer.isInitialized()) {
+                    releasePlayList();
+                    mQueueStore.clear();
+                    return;
+                }
 
-            final long seekpos = mPreferences.getLong("seekpos", 0);
-            seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
-
-            int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
-            if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
-                repmode = REPEAT_NONE;
-            }
-            mRepeatMode = repmode;
-
-            int shufmode = mPreferences.getInt("shufflemode", SHUFFLE_NONE);
-            if (shufmode != SHUFFLE_AUTO && shufmode != SHUFFLE_NORMAL) {
-                shufmode = SHUFFLE_NONE;
-            }
-            if (shufmode != SHUFFLE_NONE) {
-                q = mPreferences.getString("history", "");
-                qlen = q != null ? q.length() : 0;
-                if (qlen > 1) {
-                    plen = 0;
-                    int n = 0;
-                    int shift = 0;
-                    mHistory.clear();
-                    for (int i = 0; i < qlen; i++) {
-                        final char c = q.charAt(i);
-                        if (c == ';') {
-                            if (n >= mPlayListLen) {
-                                mHistory.clear();
-                                break;
-                            }
-                            mHistory.add(n);
-                            n = 0;
-                            shift = 0;
-                        } else {
-                            if (c >= '0' && c <= '9') {
-                                n += c - '0' << shift;
-                            } else if (c >= 'a' && c <= 'f') {
-                                n += 10 + c - 'a' << shift;
-                            } else {
-                                mHistory.clear();
-                                break;
+                final long seekpos = mPreferences.getLong("seekpos", 0);
+                seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
+
+                int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
+                if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
+                    repmode = REPEAT_NONE;
+                }
+                mRepeatMode = repmode;
+
+                int shufmode = mPreferences.getInt("shufflemode", SHUFFLE_NONE);
+                if (shufmode != SHUFFLE_AUTO && shufmode != SHUFFLE_NORMAL) {
+                    shufmode = SHUFFLE_NONE;
+                }
+                if (shufmode != SHUFFLE_NONE) {
+                    final String q = mPreferences.getString("history", "");
+                    if (q != null && q.length() > 0) {
+                        mHistory.clear();
+                        try {
+                            final IntBuffer entries = ByteBuffer.wrap(
+                                    Base64.decode(q, Base64.NO_WRAP)).asIntBuffer();
+                            while (entries.hasRemaining()) {
+                                final int n = entries.get();
+                                if (n < 0 || n >= mPlayListLen) {
+                                    mHistory.clear();
+                                    break;
+                                }
+                                mHistory.add(n);
                             }
-                            shift += 4;
+                        } catch (final IllegalArgumentException e) {
+                            // Saved by an older version, as text
+                            mHistory.clear();
                         }
                     }
                 }
-            }
-            if (shufmode == SHUFFLE_AUTO) {
-                if (!makeAutoShuffleList()) {
-                    shufmode = SHUFFLE_NONE;
+                if (shufmode == SHUFFLE_AUTO) {
+                    if (!makeAutoShuffleList()) {
+                        shufmode = SHUFFLE_NONE;
+                    }
                 }
+                mShuffleMode = shufmode;
             }
-            mShuffleMode = shufmode;
         }
     }
 
+    /**
+     * Opens the track at the current position again once the card is mounted
+     * again, where it was left off if it is the one that was ejected
+     */
+    private void reopenCurrentTrack() {
+        final Song ejected = mEjectedSong;
+        mEjectedSong = null;
+        if (mPlayPos < 0 || mPlayPos >= mPlayListLen || mPlayer.isInitialized()) {
+            return;
+        }
+        final Song current = getSong(mPlayPos);
+        mOpenFailedCounter = 20;
+        openCurrentAndNext();
+        if (mPlayer.isInitialized() && current != null && current.equals(ejected)) {
+            seek(mEjectedPosition >= 0 && mEjectedPosition < duration() ? mEjectedPosition : 0);
+        }
+    }
+
+    /**
+     * Moves the queue older versions saved in the preferences to the
+     * {@link QueueStore}
+     */
+    private void importLegacyQueue() {
+        final String q = mPreferences.getString("queue", "");
+        if (q != null && q.length() > 1) {
+            final String[] items = q.split(";");
+            final Song[] songs = new Song[items.length];
+            for (int i = 0; i < items.length; i++) {
+                final byte[] data = Base64.decode(items[i], Base64.DEFAULT);
+                songs[i] = ParcelableUtils.unmarshall(data, Song.CREATOR);
+            }
+            mQueueStore.replace(songs, songs.length);
+        }
+        SharedPreferencesCompat.apply(mPreferences.edit().remove("queue"));
+    }
+
     /**
      * Opens a file and prepares it for playback
      *
@@ -1523,9 +1638,13 @@ public class MusicPlaybackService extends Service {
                 return;
             }
             mShuffleMode = shufflemode;
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                mShuffleOrder.shuffle(mPlayListLen, mPlayPos);
+            }
             if (mShuffleMode == SHUFFLE_AUTO) {
                 if (makeAutoShuffleList()) {
-                    mPlayListLen = 0;
+                    releasePlayList();
+                    mQueueStore.clear();
                     doAutoShuffleUpdate();
                     mPlayPos = 0;
                     openCurrentAndNext();
@@ -1574,7 +1693,8 @@ public class MusicPlaybackService extends Service {
         int numremoved = 0;
         synchronized (this) {
             for (int i = 0; i < mPlayListLen; i++) {
-                if (mPlayList[i].mSongId.equals(id)) {
+                final Song song = getSong(i);
+                if (song != null && song.mSongId.equals(id)) {
                     numremoved += removeTracksInternal(i, i);
                     i--;
                 }
@@ -1721,11 +1841,126 @@ public class MusicPlaybackService extends Service {
 
     private Song getCurrentSong() {
         if (mPlayList != null && mPlayPos != -1) {
-            return mPlayList[mPlayPos];
+            return getSong(mPlayPos);
         }
         return null;
     }
 
+    /**
+     * Returns a track of the queue, reading back its page of the saved queue
+     * if it hasn't been yet
+     *
+     * @param position The position of the track
+     * @return The track, null if it could not be read back
+     */
+    private Song getSong(final int position) {
+        if (mPlayList[position] == NO_SONG) {
+            loadQueuePage(position);
+        }
+        return mSongTable.get(mPlayList[position]);
+    }
+
+    /**
+     * Reads back the page of the saved queue around a position. Safe to call
+     * holding the service, the store reads on its own writer, which never
+     * waits for the service.
+     *
+     * @param position The position to read back
+     */
+    private void loadQueuePage(final int position) {
+        final int first = Math.max(0, Math.min(position - QUEUE_PAGE_SIZE / 2,
+                mPlayListLen - QUEUE_PAGE_SIZE));
+        final Song[] songs = mQueueStore.load(first, QUEUE_PAGE_SIZE);
+        for (int i = 0; i < songs.length && first + i < mPlayListLen; i++) {
+            if (mPlayList[first + i] != NO_SONG) {
+                continue;
+            }
+            if (songs[i] != null) {
+                mPlayList[first + i] = mSongTable.acquire(songs[i]);
+            } else {
+                // Not read again, and dropped once whatever asked for it is done
+                mPlayList[first + i] = UNREADABLE_SONG;
+                if (!mPlayerHandler.hasMessages(DROP_UNREADABLE)) {
+                    mPlayerHandler.sendEmptyMessage(DROP_UNREADABLE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the tracks that could not be read back from the queue
+     */
+    private void dropUnreadableTracks() {
+        int numremoved = 0;
+        synchronized (this) {
+            for (int i = mPlayListLen - 1; i >= 0; i--) {
+                if (mPlayList[i] == UNREADABLE_SONG) {
+                    numremoved += removeTracksInternal(i, i);
+                }
+            }
+        }
+        if (numremoved > 0) {
+            notifyChange(QUEUE_CHANGED);
+        }
+    }
+
+    /**
+     * Reads back whatever is left of the saved queue
+     */
+    private void loadWholeQueue() {
+        for (int i = 0; i < mPlayListLen; i++) {
+            if (mPlayList[i] == NO_SONG) {
+                loadQueuePage(i + QUEUE_PAGE_SIZE / 2);
+            }
+        }
+    }
+
+    /**
+     * Reads back what is left of the saved queue, then disables the store,
+     * which can't read back what changes from then on. The service is only
+     * held a page at a time, the store follows the changes made in between.
+     */
+    private void detachQueueStore() {
+        int position = 0;
+        while (true) {
+            synchronized (this) {
+                while (position < mPlayListLen && mPlayList[position] != NO_SONG) {
+                    position++;
+                }
+                if (position >= mPlayListLen) {
+                    mQueueStore.setEnabled(false);
+                    return;
+                }
+                loadQueuePage(position + QUEUE_PAGE_SIZE / 2);
+                // Past the page, even where a track could not be read
+                position += QUEUE_PAGE_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Reads back the next page of the saved queue, one page at a time so
+     * playback is never kept waiting long
+     */
+    private void loadNextQueuePage() {
+        synchronized (this) {
+            if (mQueueLoadPosition >= mPlayListLen) {
+                return;
+            }
+            for (int i = mQueueLoadPosition; i < mQueueLoadPosition + QUEUE_PAGE_SIZE
+                    && i < mPlayListLen; i++) {
+                if (mPlayList[i] == NO_SONG) {
+                    loadQueuePage(mQueueLoadPosition + QUEUE_PAGE_SIZE / 2);
+                    break;
+                }
+            }
+            mQueueLoadPosition += QUEUE_PAGE_SIZE;
+            if (mQueueLoadPosition < mPlayListLen) {
+                mPlayerHandler.sendEmptyMessage(LOAD_QUEUE);
+            }
+        }
+    }
+
     /**
      * Returns the album ID
      *
@@ -1824,12 +2059,44 @@ public class MusicPlaybackService extends Service {
             final int len = mPlayListLen;
             final Song[] list = new Song[len];
             if (mPlayList != null) {
-                System.arraycopy(mPlayList, 0, list, 0, len);
+                loadWholeQueue();
+                for (int i = 0; i < len; i++) {
+                    list[i] = mSongTable.get(mPlayList[i]);
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Returns part of the queue
+     *
+     * @param first The position of the first track to return
+     * @param count The most tracks to return
+     * @return The tracks from {@code first} on, fewer than {@code count} at
+     * the end of the queue. Null where a track could not be read back, it
+     * is about to be dropped from the queue.
+     */
+    public Song[] getQueue(final int first, final int count) {
+        synchronized (this) {
+            final int len = Math.max(0, Math.min(count, mPlayListLen - first));
+            final Song[] list = new Song[first < 0 ? 0 : len];
+            for (int i = 0; i < list.length; i++) {
+                list[i] = getSong(first + i);
             }
             return list;
         }
     }
 
+    /**
+     * @return The number of tracks in the queue
+     */
+    public int getQueueSize() {
+        synchronized (this) {
+            return mPlayListLen;
+        }
+    }
+
     /**
      * @return True if music is playing, false otherwise
      */
@@ -1868,7 +2135,7 @@ public class MusicPlaybackService extends Service {
                 if (mPlayListLen == listlength) {
                     newlist = false;
                     for (int i = 0; i < listlength; i++) {
-                        if (!list[i].equals(mPlayList[i])) {
+                        if (!list[i].equals(getSong(i))) {
                             newlist = true;
                             break;
                         }
@@ -1884,6 +2151,8 @@ public class MusicPlaybackService extends Service {
                     mPlayPos = mShuffler.nextInt(mPlayListLen);
                 }
                 mHistory.clear();
+                // A new round, starting here
+                mShuffleOrder.shuffle(mPlayListLen, mPlayPos);
                 openCurrentAndNext();
                 if (oldId == null || !oldId.equals(getAudioId())) {
                     notifyChange(META_CHANGED);
@@ -1945,6 +2214,7 @@ public class MusicPlaybackService extends Service {
                 mIsSupposedToBePlaying = false;
                 notifyChange(PLAYSTATE_CHANGED);
             }
+            saveShuffleOrder();
         }
     }
 
@@ -1980,12 +2250,12 @@ public class MusicPlaybackService extends Service {
     public void prev() {
         synchronized (this) {
             if (mShuffleMode == SHUFFLE_NORMAL) {
-                // Go to previously-played track and remove it from the history
-                final int histsize = mHistory.size();
-                if (histsize == 0) {
+                // Go to previously-played track
+                final int pos = mShuffleOrder.previous(mPlayPos);
+                if (pos < 0) {
                     return;
                 }
-                mPlayPos = mHistory.remove(histsize - 1);
+                mPlayPos = pos;
             } else {
                 if (mPlayPos > 0) {
                     mPlayPos--;
@@ -2035,7 +2305,7 @@ public class MusicPlaybackService extends Service {
                 index2 = mPlayListLen - 1;
             }
             if (index1 < index2) {
-                final Song tmp = mPlayList[index1];
+                final int tmp = mPlayList[index1];
                 System.arraycopy(mPlayList, index1 + 1, mPlayList, index1, index2 - index1);
                 mPlayList[index2] = tmp;
                 if (mPlayPos == index1) {
@@ -2044,7 +2314,7 @@ public class MusicPlaybackService extends Service {
                     mPlayPos--;
                 }
             } else if (index2 < index1) {
-                final Song tmp = mPlayList[index1];
+                final int tmp = mPlayList[index1];
                 System.arraycopy(mPlayList, index2, mPlayList, index2 + 1, index1 - index2);
                 mPlayList[index2] = tmp;
                 if (mPlayPos == index1) {
@@ -2053,6 +2323,8 @@ public class MusicPlaybackService extends Service {
                     mPlayPos++;
                 }
             }
+            mQueueStore.move(index1, index2);
+            mShuffleOrder.move(index1, index2);
             notifyChange(QUEUE_CHANGED);
         }
     }
@@ -2243,6 +2515,12 @@ public class MusicPlaybackService extends Service {
                 case RELEASE_WAKELOCK:
                     mService.get().mWakeLock.release();
                     break;
+                case LOAD_QUEUE:
+                    mService.get().loadNextQueuePage();
+                    break;
+                case DROP_UNREADABLE:
+                    mService.get().dropUnreadableTracks();
+                    break;
                 case FOCUSCHANGE:
                     switch (msg.arg1) {
                         case AudioManager.AUDIOFOCUS_LOSS:
@@ -2282,11 +2560,431 @@ public class MusicPlaybackService extends Service {
         }
     }
 
-    private static final class Shuffler {
+    /**
+     * Holds the tracks of the queue, each once however often it is queued.
+     * The queue refers to them by handle, and a track is let go of once the
+     * queue no longer does.
+     */
+    static final class SongTable {
+
+        private final HashMap<Song, Integer> mHandles = new HashMap<Song, Integer>();
+
+        private Song[] mSongs = new Song[MIN_PLAYLIST_CAPACITY];
+
+        private int[] mReferences = new int[MIN_PLAYLIST_CAPACITY];
+
+        // Handles let go of, to be handed out again
+        private int[] mFreeHandles = new int[MIN_PLAYLIST_CAPACITY];
+
+        private int mFreeCount;
+
+        private int mSize;
+
+        /**
+         * @param song A track being queued
+         * @return The handle of the track, {@link #NO_SONG} if it is null
+         */
+        public int acquire(final Song song) {
+            if (song == null) {
+                return NO_SONG;
+            }
+            Integer handle = mHandles.get(song);
+            if (handle == null) {
+                if (mFreeCount > 0) {
+                    handle = mFreeHandles[--mFreeCount];
+                } else {
+                    if (mSize == mSongs.length) {
+                        mSongs = Arrays.copyOf(mSongs, mSize * 2);
+                        mReferences = Arrays.copyOf(mReferences, mSize * 2);
+                    }
+                    handle = mSize++;
+                }
+                mSongs[handle] = song;
+                mHandles.put(song, handle);
+            }
+            mReferences[handle]++;
+            return handle;
+        }
+
+        /**
+         * @param handle The handle of a track leaving the queue
+         */
+        public void release(final int handle) {
+            if (handle < 0 || --mReferences[handle] > 0) {
+                return;
+            }
+            mHandles.remove(mSongs[handle]);
+            mSongs[handle] = null;
+            if (mFreeCount == mFreeHandles.length) {
+                mFreeHandles = Arrays.copyOf(mFreeHandles, mFreeCount * 2);
+            }
+            mFreeHandles[mFreeCount++] = handle;
+        }
+
+        /**
+         * @param handle The handle of a queued track
+         * @return The track, null for {@link #NO_SONG} and
+         * {@link #UNREADABLE_SONG}
+         */
+        public Song get(final int handle) {
+            return handle < 0 ? null : mSongs[handle];
+        }
+    }
+
+    /**
+     * The last {@link #MAX_HISTORY_SIZE} tracks played, oldest first, in a
+     * ring so adding one and dropping the oldest don't shift the others. It
+     * also maps each track in it to when it was last added, so whether a
+     * track is among the last few is a lookup rather than a walk back
+     * through the history.
+     */
+    private static final class PlayHistory {
+
+        // The map has 1 << MAP_BITS slots, at least twice MAX_HISTORY_SIZE
+        private static final int MAP_BITS = 8;
+
+        private static final int MAP_MASK = (1 << MAP_BITS) - 1;
+
+        private static final int NO_TRACK = -1;
+
+        private final int[] mEntries = new int[MAX_HISTORY_SIZE];
+
+        private int mFirst;
+
+        private int mSize;
+
+        // Number of tracks ever added, numbering the entries
+        private int mAdded;
+
+        // Open addressing with linear probing: the tracks in the history, and
+        // the number of the entry each was last added as
+        private final int[] mTracks = new int[1 << MAP_BITS];
+
+        private final int[] mNumbers = new int[1 << MAP_BITS];
+
+        /**
+         * Constructor of <code>PlayHistory</code>
+         */
+        public PlayHistory() {
+            Arrays.fill(mTracks, NO_TRACK);
+        }
+
+        /**
+         * Adds a track, dropping the oldest one if the history is full
+         *
+         * @param track The track, not negative
+         */
+        public void add(final int track) {
+            if (mSize == MAX_HISTORY_SIZE) {
+                final int oldest = mEntries[mFirst];
+                final int slot = find(oldest);
+                // Unless it was added again since
+                if (slot >= 0 && mNumbers[slot] == mAdded - mSize) {
+                    delete(slot);
+                }
+                mFirst = (mFirst + 1) % MAX_HISTORY_SIZE;
+                mSize--;
+            }
+            mEntries[(mFirst + mSize) % MAX_HISTORY_SIZE] = track;
+            mSize++;
+            int slot = find(track);
+            if (slot < 0) {
+                slot = hash(track);
+                while (mTracks[slot] != NO_TRACK) {
+                    slot = slot + 1 & MAP_MASK;
+                }
+                mTracks[slot] = track;
+            }
+            mNumbers[slot] = mAdded++;
+        }
+
+        /**
+         * @param index The index of the entry, 0 being the oldest
+         * @return The track
+         */
+        public int get(final int index) {
+            return mEntries[(mFirst + index) % MAX_HISTORY_SIZE];
+        }
+
+        /**
+         * @return The number of tracks in the history
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * @param track    The track to look for
+         * @param lookback The number of latest entries to look in
+         * @return True if the track is among them
+         */
+        public boolean contains(final int track, final int lookback) {
+            final int slot = find(track);
+            return slot >= 0 && mNumbers[slot] >= mAdded - Math.min(lookback, mSize);
+        }
+
+        /**
+         * Empties the history
+         */
+        public void clear() {
+            Arrays.fill(mTracks, NO_TRACK);
+            mFirst = 0;
+            mSize = 0;
+        }
+
+        private static int hash(final int track) {
+            return track * 0x9E3779B9 >>> 32 - MAP_BITS;
+        }
+
+        private int find(final int track) {
+            int slot = hash(track);
+            while (mTracks[slot] != NO_TRACK) {
+                if (mTracks[slot] == track) {
+                    return slot;
+                }
+                slot = slot + 1 & MAP_MASK;
+            }
+            return -1;
+        }
+
+        /**
+         * Empties a slot, moving back the entries after it that would no
+         * longer be found past the gap
+         */
+        private void delete(int slot) {
+            mTracks[slot] = NO_TRACK;
+            int next = slot;
+            while (true) {
+                next = next + 1 & MAP_MASK;
+                if (mTracks[next] == NO_TRACK) {
+                    return;
+                }
+                // Distance from its home slot, and from the gap
+                final int home = hash(mTracks[next]);
+                if ((next - home & MAP_MASK) >= (next - slot & MAP_MASK)) {
+                    mTracks[slot] = mTracks[next];
+                    mNumbers[slot] = mNumbers[next];
+                    mTracks[next] = NO_TRACK;
+                    slot = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * The order the queue is played in while shuffling: a permutation of its
+     * positions, drawn by Fisher-Yates and kept up to date as tracks are
+     * queued, moved and removed, so the next track is a lookup rather than a
+     * search for one not played yet. The tracks after the current one in
+     * this order are the ones not played yet in this round.
+     */
+    static final class ShuffleOrder {
+
+        private final Random mRandom = new Random();
+
+        // The positions of the queue, in the order they are played
+        private int[] mOrder = new int[MIN_PLAYLIST_CAPACITY];
+
+        // Where each position is in mOrder, rebuilt after the queue changes
+        private int[] mRanks = new int[MIN_PLAYLIST_CAPACITY];
+
+        private boolean mRanksValid = true;
+
+        private int mSize;
+
+        // Changed since it was last saved
+        private boolean mChanged;
+
+        /**
+         * Draws a new order
+         *
+         * @param size  The length of the queue
+         * @param first The position to play first, or -1
+         */
+        public void shuffle(final int size, final int first) {
+            ensureCapacity(size);
+            for (int i = 0; i < size; i++) {
+                mOrder[i] = i;
+            }
+            for (int i = size - 1; i > 0; i--) {
+                swap(i, mRandom.nextInt(i + 1));
+            }
+            mSize = size;
+            mRanksValid = false;
+            if (first >= 0 && first < size) {
+                swap(0, rank(first));
+                mRanksValid = false;
+            }
+            mChanged = true;
+        }
+
+        /**
+         * Takes back an order that was saved
+         *
+         * @param order The saved order
+         * @param size  The length of the queue
+         * @return False if the order does not fit the queue
+         */
+        public boolean restore(final int[] order, final int size) {
+            if (order == null || order.length != size) {
+                return false;
+            }
+            final boolean[] seen = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                if (order[i] < 0 || order[i] >= size || seen[order[i]]) {
+                    return false;
+                }
+                seen[order[i]] = true;
+            }
+            ensureCapacity(size);
+            System.arraycopy(order, 0, mOrder, 0, size);
+            mSize = size;
+            mRanksValid = false;
+            mChanged = false;
+            return true;
+        }
 
-        private final LinkedList<Integer> mHistoryOfNumbers = new LinkedList<Integer>();
+        /**
+         * @param position The position being played, or -1
+         * @return The position to play after it, -1 at the end of the round
+         */
+        public int next(final int position) {
+            if (position < 0 || position >= mSize) {
+                return mSize > 0 ? mOrder[0] : -1;
+            }
+            final int rank = rank(position);
+            return rank + 1 < mSize ? mOrder[rank + 1] : -1;
+        }
 
-        private final TreeSet<Integer> mPreviousNumbers = new TreeSet<Integer>();
+        /**
+         * @param position The position being played
+         * @return The position played before it, -1 at the start of the round
+         */
+        public int previous(final int position) {
+            if (position < 0 || position >= mSize) {
+                return -1;
+            }
+            final int rank = rank(position);
+            return rank > 0 ? mOrder[rank - 1] : -1;
+        }
+
+        /**
+         * Tracks were queued. Each is dealt a random place among the ones not
+         * played yet, as the "inside-out" Fisher-Yates does.
+         *
+         * @param position The position they were queued at
+         * @param count    The number of tracks queued
+         * @param current  The position being played before they were queued
+         */
+        public void insert(final int position, final int count, final int current) {
+            final int unplayed = current >= 0 && current < mSize ? rank(current) + 1 : 0;
+            ensureCapacity(mSize + count);
+            for (int i = 0; i < mSize; i++) {
+                if (mOrder[i] >= position) {
+                    mOrder[i] += count;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                mOrder[mSize] = position + i;
+                swap(mSize, unplayed + mRandom.nextInt(mSize - unplayed + 1));
+                mSize++;
+            }
+            mRanksValid = false;
+            mChanged = true;
+        }
+
+        /**
+         * Tracks were removed
+         *
+         * @param first The first position removed
+         * @param last  The last position removed
+         */
+        public void remove(final int first, final int last) {
+            final int count = last - first + 1;
+            int size = 0;
+            for (int i = 0; i < mSize; i++) {
+                final int position = mOrder[i];
+                if (position < first) {
+                    mOrder[size++] = position;
+                } else if (position > last) {
+                    mOrder[size++] = position - count;
+                }
+            }
+            mSize = size;
+            mRanksValid = false;
+            mChanged = true;
+        }
+
+        /**
+         * A track was moved. It keeps its place in the order.
+         *
+         * @param from The position it was moved from
+         * @param to   The position it was moved to
+         */
+        public void move(final int from, final int to) {
+            for (int i = 0; i < mSize; i++) {
+                final int position = mOrder[i];
+                if (position == from) {
+                    mOrder[i] = to;
+                } else if (from < to && position > from && position <= to) {
+                    mOrder[i] = position - 1;
+                } else if (to < from && position >= to && position < from) {
+                    mOrder[i] = position + 1;
+                }
+            }
+            mRanksValid = false;
+            mChanged = true;
+        }
+
+        /**
+         * @return True if the order changed since it was last taken to be saved
+         */
+        public boolean isChanged() {
+            return mChanged;
+        }
+
+        /**
+         * @return The positions of the queue in the order they are played,
+         * {@link #size()} of them
+         */
+        public int[] getOrder() {
+            mChanged = false;
+            return mOrder;
+        }
+
+        /**
+         * @return The length of the queue
+         */
+        public int size() {
+            return mSize;
+        }
+
+        private int rank(final int position) {
+            if (!mRanksValid) {
+                for (int i = 0; i < mSize; i++) {
+                    mRanks[mOrder[i]] = i;
+                }
+                mRanksValid = true;
+            }
+            return mRanks[position];
+        }
+
+        private void swap(final int i, final int j) {
+            final int tmp = mOrder[i];
+            mOrder[i] = mOrder[j];
+            mOrder[j] = tmp;
+        }
+
+        private void ensureCapacity(final int size) {
+            if (size > mOrder.length) {
+                mOrder = Arrays.copyOf(mOrder, size * 2);
+                mRanks = new int[size * 2];
+                mRanksValid = false;
+            }
+        }
+    }
+
+    private static final class Shuffler {
 
         private final Random mRandom = new Random();
 
@@ -2301,32 +2999,16 @@ public class MusicPlaybackService extends Service {
 
         /**
          * @param interval The length the queue
-         * @return The position of the next track to play
+         * @return A random position, other than the last one returned
          */
         public int nextInt(final int interval) {
             int next;
             do {
                 next = mRandom.nextInt(interval);
-            } while (next == mPrevious && interval > 1
-                    && !mPreviousNumbers.contains(Integer.valueOf(next)));
+            } while (next == mPrevious && interval > 1);
             mPrevious = next;
-            mHistoryOfNumbers.add(mPrevious);
-            mPreviousNumbers.add(mPrevious);
-            cleanUpHistory();
             return next;
         }
-
-        /**
-         * Removes old tracks and cleans up the history preparing for new tracks
-         * to be added to the mapping
-         */
-        private void cleanUpHistory() {
-            if (!mHistoryOfNumbers.isEmpty() && mHistoryOfNumbers.size() >= MAX_HISTORY_SIZE) {
-                for (int i = 0; i < Math.max(1, MAX_HISTORY_SIZE / 2); i++) {
-                    mPreviousNumbers.remove(mHistoryOfNumbers.removeFirst());
-                }
-            }
-        }
     }
 
     private static final class MultiPlayer implements MediaPlayer.OnErrorListener,
@@ -2737,8 +3419,16 @@ public class MusicPlaybackService extends Service {
          * {@inheritDoc}
          */
         @Override
-        public Song[] getQueue() throws RemoteException {
-            return mService.get().getQueue();
+        public Song[] getQueueRange(final int first, final int count) throws RemoteException {
+            return mService.get().getQueue(first, count);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getQueueSize() throws RemoteException {
+            return mService.get().getQueueSize();
         }
 
         /**
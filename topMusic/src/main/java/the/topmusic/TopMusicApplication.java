@@ -21,6 +21,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import the.topmusic.BuildConfig;
+import the.topmusic.HTTP.HTTPClientFarm;
 import the.topmusic.cache.ImageCache;
 import the.topmusic.utils.TopMusicUtils;
 import the.topmusic.utils.URLUtils;
@@ -44,6 +45,7 @@ public class TopMusicApplication extends Application {
         //enableStrictMode();
         // Turn off logging for jaudiotagger.
         Logger.getLogger("org.jaudiotagger").setLevel(Level.OFF);
+        HTTPClientFarm.configure(this);
         URLUtils.enableHttpResponseCache(this);
     }
 
@@ -24,6 +24,7 @@ import com.actionbarsherlock.app.SherlockFragmentActivity;
 import the.topmusic.Config;
 import the.topmusic.R;
 import the.topmusic.cache.ImageFetcher;
+import the.topmusic.cache.ImagePrefetcher;
 import the.topmusic.model.Album;
 import the.topmusic.model.Song;
 import the.topmusic.ui.MusicHolder;
@@ -37,7 +38,7 @@ import the.topmusic.utils.TopMusicUtils;
  * 
  * @author Andrew Neal (andrewdneal@gmail.com)
  */
-public class AlbumAdapter extends ArrayAdapter<Album> {
+public class AlbumAdapter extends ArrayAdapter<Album> implements ImagePrefetcher.Prefetchable {
 
     /**
      * Number of views (ImageView and TextView)
@@ -75,6 +76,11 @@ public class AlbumAdapter extends ArrayAdapter<Album> {
      */
     private DataHolder[] mData;
 
+    /**
+     * The size of the last album image bound, to prefetch images for
+     */
+    private int mImageSize;
+
     /**
      * Constructor of <code>AlbumAdapter</code>
      * 
@@ -118,6 +124,7 @@ public class AlbumAdapter extends ArrayAdapter<Album> {
         // Asynchronously load the album images into the adapter
         mImageFetcher.loadAlbumImage(dataHolder.mLineTwo, dataHolder.mLineOne, dataHolder.mItemId,
                 holder.mImage.get());
+        mImageSize = ImageFetcher.getRequestedSize(holder.mImage.get());
         // List view only items
         if (mLoadExtraData) {
             // Make sure the background layer gets set
@@ -134,6 +141,19 @@ public class AlbumAdapter extends ArrayAdapter<Album> {
         return convertView;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prefetchImage(final int position) {
+        if (mData == null || position >= mData.length) {
+            return;
+        }
+        final DataHolder dataHolder = mData[position];
+        mImageFetcher.prefetchAlbumImage(dataHolder.mLineTwo, dataHolder.mLineOne,
+                dataHolder.mItemId, mImageSize);
+    }
+
     /**
      * {@inheritDoc}
      */
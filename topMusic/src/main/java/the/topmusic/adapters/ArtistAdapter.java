@@ -23,6 +23,7 @@ import com.actionbarsherlock.app.SherlockFragmentActivity;
 
 import the.topmusic.R;
 import the.topmusic.cache.ImageFetcher;
+import the.topmusic.cache.ImagePrefetcher;
 import the.topmusic.model.Artist;
 import the.topmusic.model.Song;
 import the.topmusic.ui.MusicHolder;
@@ -40,7 +41,7 @@ import the.topmusic.utils.TopMusicUtils;
 /**
  * @author Andrew Neal (andrewdneal@gmail.com)
  */
-public class ArtistAdapter extends ArrayAdapter<Artist> {
+public class ArtistAdapter extends ArrayAdapter<Artist> implements ImagePrefetcher.Prefetchable {
 
     /**
      * Number of views (ImageView and TextView)
@@ -67,6 +68,11 @@ public class ArtistAdapter extends ArrayAdapter<Artist> {
      */
     private DataHolder[] mData;
 
+    /**
+     * The size of the last artist image bound, to prefetch images for
+     */
+    private int mImageSize;
+
     /**
      * Loads line three and the background image if the user decides to.
      */
@@ -112,6 +118,7 @@ public class ArtistAdapter extends ArrayAdapter<Artist> {
         holder.mLineTwo.get().setText(dataHolder.mLineTwo);
         // Asynchronously load the artist image into the adapter
         mImageFetcher.loadArtistImage(dataHolder.mLineOne, holder.mImage.get());
+        mImageSize = ImageFetcher.getRequestedSize(holder.mImage.get());
         if (mLoadExtraData) {
             // Make sure the background layer gets set
             holder.mOverlay.get().setBackgroundColor(mOverlay);
@@ -125,6 +132,17 @@ public class ArtistAdapter extends ArrayAdapter<Artist> {
         return convertView;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prefetchImage(final int position) {
+        if (mData == null || position >= mData.length) {
+            return;
+        }
+        mImageFetcher.prefetchArtistImage(mData[position].mLineOne, mImageSize);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -12,6 +12,7 @@ import com.actionbarsherlock.app.SherlockFragmentActivity;
 import the.topmusic.Config;
 import the.topmusic.R;
 import the.topmusic.cache.ImageFetcher;
+import the.topmusic.cache.ImagePrefetcher;
 import the.topmusic.model.Album;
 import the.topmusic.model.XMusicEntry;
 import the.topmusic.ui.MusicHolder;
@@ -20,7 +21,7 @@ import the.topmusic.utils.TopMusicUtils;
 /**
  * Created by lucd on 9/14/14.
  */
-public class XMusicEntryAdapter extends ArrayAdapter<XMusicEntry> {
+public class XMusicEntryAdapter extends ArrayAdapter<XMusicEntry> implements ImagePrefetcher.Prefetchable {
 
     /**
      * Number of views (ImageView and TextView)
@@ -53,6 +54,10 @@ public class XMusicEntryAdapter extends ArrayAdapter<XMusicEntry> {
      */
     private boolean mTouchPlay = false;
 
+    /**
+     * The size of the last image bound, to prefetch images for
+     */
+    private int mImageSize;
 
     public XMusicEntryAdapter(final Context context, final int layoutId) {
         super(context, 0);
@@ -102,21 +107,48 @@ public class XMusicEntryAdapter extends ArrayAdapter<XMusicEntry> {
         }
 
         if (imageView != null) {
-            String imgURL = entry.thumbnailURL();
-            if (imgURL == null || imgURL.isEmpty()) {
-                imgURL = entry.imageURL();
-            }
-            if (imgURL == null || imgURL.isEmpty()) {
+            final String imgURL = getImageURL(entry);
+            if (imgURL == null) {
                 imageView.setVisibility(View.GONE);
             } else {
                 imageView.setVisibility(View.VISIBLE);
             }
             // Asynchronously load the image into the adapter
             mImageFetcher.loadImageFromURL(imgURL, imageView);
+            mImageSize = ImageFetcher.getRequestedSize(imageView);
         }
 
         return convertView;
     }
+
+    /**
+     * @return The URL of the thumbnail, or else the image, of {@code entry}, or
+     * null if it has neither
+     */
+    private static String getImageURL(final XMusicEntry entry) {
+        String imgURL = entry.thumbnailURL();
+        if (imgURL == null || imgURL.isEmpty()) {
+            imgURL = entry.imageURL();
+        }
+        if (imgURL == null || imgURL.isEmpty()) {
+            return null;
+        }
+        return imgURL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prefetchImage(final int position) {
+        if (position >= getCount()) {
+            return;
+        }
+        final String imgURL = getImageURL(getItem(position));
+        if (imgURL != null) {
+            mImageFetcher.prefetchImageFromURL(imgURL, mImageSize);
+        }
+    }
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,264 @@
+package the.topmusic.cache;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import the.topmusic.utils.DiskCacheUtils;
+
+import static the.topmusic.utils.DiskCacheUtils.DiskCacheUser;
+
+/**
+ * Remembers what the Last.fm lookups behind an artist or album image resolved
+ * to: the image URL, the corrected name of an artist, or that there is none.
+ * Resolutions are kept in memory and in a small disk cache, and expire after
+ * {@link #FOUND_TTL}, or {@link #NOT_FOUND_TTL} if nothing was found, so a miss
+ * is retried now and then.
+ * <p/>
+ * Concurrent lookups of the same key are coalesced: the first one asks
+ * Last.fm, the others wait for it and share its resolution.
+ */
+public final class ArtworkUrlCache implements DiskCacheUser {
+    private static final String TAG = ArtworkUrlCache.class.getSimpleName();
+
+    /**
+     * Returned by a {@link Resolver} when Last.fm has nothing for the key
+     */
+    public static final String NOT_FOUND = "";
+
+    /**
+     * How long a resolution to a URL or name is kept, 14 days
+     */
+    private static final long FOUND_TTL = 14L * 24 * 60 * 60 * 1000;
+
+    /**
+     * How long a resolution to nothing is kept, 1 day
+     */
+    private static final long NOT_FOUND_TTL = 24L * 60 * 60 * 1000;
+
+    /**
+     * Default disk cache size 1MB
+     */
+    private static final int DISK_CACHE_SIZE = 1024 * 1024;
+
+    private static final int DISK_CACHE_VERSION = 1;
+
+    /**
+     * Number of resolutions kept in memory
+     */
+    private static final int MEMORY_CACHE_SIZE = 512;
+
+    private static final char KEY_SEPARATOR = '\n';
+
+    private static ArtworkUrlCache sInstance = null;
+
+    private final LruCache<String, Resolution> mMemoryCache = new LruCache<String, Resolution>(MEMORY_CACHE_SIZE);
+
+    /**
+     * Keys being resolved, each with a latch released once its lookup is done
+     */
+    private final ConcurrentMap<String, CountDownLatch> mLookups = new ConcurrentHashMap<String, CountDownLatch>();
+
+    private DiskCache mDiskCache;
+
+    private DiskCacheUtils mCacheUtil;
+
+    private ArtworkUrlCache(final Context context) {
+        DiskCacheUtils.setupDefaultCache(context);
+        mCacheUtil = DiskCacheUtils.getDefaultCache();
+        mCacheUtil.initDiskCacheFor(this, DISK_CACHE_SIZE, false, DISK_CACHE_VERSION, 1);
+    }
+
+    /**
+     * Used to create a singleton of the cache. Opens the disk cache, so this
+     * should not be called on the main thread the first time.
+     *
+     * @param context The {@link Context} to use
+     * @return The single instance of this class
+     */
+    public static synchronized ArtworkUrlCache getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new ArtworkUrlCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return The key of the image URL of an artist
+     */
+    public static String artistImageKey(final String artistName) {
+        return "artist" + KEY_SEPARATOR + normalize(artistName);
+    }
+
+    /**
+     * @return The key of the corrected name of an artist
+     */
+    public static String artistCorrectionKey(final String artistName) {
+        return "correction" + KEY_SEPARATOR + normalize(artistName);
+    }
+
+    /**
+     * @return The key of the image URL of an album
+     */
+    public static String albumImageKey(final String artistName, final String albumName) {
+        return "album" + KEY_SEPARATOR + normalize(artistName) + KEY_SEPARATOR
+                + normalize(albumName);
+    }
+
+    /**
+     * Last.fm does not tell names apart by case or surrounding whitespace
+     */
+    private static String normalize(final String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns what {@code key} resolved to, asking {@code resolver} if it has
+     * not been resolved yet or its resolution expired. Blocks while another
+     * thread resolves the same key.
+     *
+     * @param key      A key from one of the *Key methods
+     * @param resolver Asks Last.fm
+     * @return The URL or name, or null if there is none or it could not be
+     * looked up
+     */
+    public String resolve(final String key, final Resolver resolver) {
+        Resolution resolution = getResolution(key);
+        if (resolution == null) {
+            final CountDownLatch lookup = new CountDownLatch(1);
+            final CountDownLatch running = mLookups.putIfAbsent(key, lookup);
+            if (running != null) {
+                // Share whatever the running lookup stored
+                try {
+                    running.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                resolution = getResolution(key);
+                if (resolution == null) {
+                    // The running lookup failed
+                    return null;
+                }
+            } else {
+                try {
+                    // Resolved by someone else before we got in
+                    resolution = getResolution(key);
+                    if (resolution == null) {
+                        final String value = resolver.resolve();
+                        if (value == null) {
+                            // The lookup failed, try again next time
+                            return null;
+                        }
+                        resolution = putResolution(key, value);
+                    }
+                } finally {
+                    mLookups.remove(key, lookup);
+                    lookup.countDown();
+                }
+            }
+        }
+        return resolution.isFound() ? resolution.mValue : null;
+    }
+
+    /**
+     * @return The unexpired resolution of {@code key}, or null
+     */
+    private Resolution getResolution(final String key) {
+        final long now = System.currentTimeMillis();
+        Resolution resolution = mMemoryCache.get(key);
+        if (resolution == null) {
+            resolution = Resolution.decode(mCacheUtil.getStringFromCache(mDiskCache, key));
+            if (resolution != null) {
+                mMemoryCache.put(key, resolution);
+            }
+        }
+        if (resolution != null && resolution.mExpires <= now) {
+            return null;
+        }
+        return resolution;
+    }
+
+    private Resolution putResolution(final String key, final String value) {
+        final Resolution resolution = new Resolution(value, System.currentTimeMillis()
+                + (NOT_FOUND.equals(value) ? NOT_FOUND_TTL : FOUND_TTL));
+        mMemoryCache.put(key, resolution);
+        // Replaces an expired resolution, unlike DiskCacheUtils#addStringToCache
+        final DiskLruCache.Editor editor = mCacheUtil.editCache(mDiskCache, key);
+        if (editor != null) {
+            try {
+                editor.set(0, resolution.encode());
+                editor.commit();
+            } catch (final IOException e) {
+                Log.e(TAG, "putResolution - " + e);
+                try {
+                    editor.abort();
+                } catch (final IOException ignored) {
+                } catch (final IllegalStateException ignored) {
+                }
+            }
+        }
+        return resolution;
+    }
+
+    @Override
+    public void setCache(final DiskCache cache) {
+        mDiskCache = cache;
+    }
+
+    @Override
+    public String getUniqueIdentifier() {
+        return TAG;
+    }
+
+    /**
+     * Looks a key up on Last.fm
+     */
+    public interface Resolver {
+        /**
+         * @return The URL or name, {@link #NOT_FOUND} if Last.fm has none, or
+         * null if the lookup failed and should not be remembered
+         */
+        String resolve();
+    }
+
+    private static final class Resolution {
+        private final String mValue;
+
+        private final long mExpires;
+
+        private Resolution(final String value, final long expires) {
+            mValue = value;
+            mExpires = expires;
+        }
+
+        private boolean isFound() {
+            return !NOT_FOUND.equals(mValue);
+        }
+
+        private String encode() {
+            return mExpires + " " + mValue;
+        }
+
+        private static Resolution decode(final String encoded) {
+            if (encoded == null) {
+                return null;
+            }
+            final int separator = encoded.indexOf(' ');
+            if (separator < 0) {
+                return null;
+            }
+            try {
+                return new Resolution(encoded.substring(separator + 1),
+                        Long.parseLong(encoded.substring(0, separator)));
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
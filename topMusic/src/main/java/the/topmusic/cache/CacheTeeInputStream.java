@@ -0,0 +1,170 @@
+package the.topmusic.cache;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link InputStream} that hands bytes to its reader as they arrive from
+ * the source, and copies them into a {@link DiskLruCache.Editor} at the same
+ * time. The edit is committed only once the source reaches EOF, or as soon
+ * as the expected length has been read, if it is known; closing the stream
+ * early, a failing read or a length other than the expected one aborts it,
+ * so a partial body never becomes visible to other readers of the cache.
+ * <p/>
+ * Readers like GZIPInputStream stop once they have what they need and may
+ * never ask for EOF, so the expected length should be given when known.
+ */
+public class CacheTeeInputStream extends FilterInputStream {
+
+    private final DiskLruCache.Editor mEditor;
+
+    private final OutputStream mCacheOut;
+
+    private final OnCommitListener mListener;
+
+    private final long mExpectedLength;
+
+    private long mBytesRead = 0;
+
+    private boolean mFinished = false;
+
+    /**
+     * @param source   The stream to read from
+     * @param editor   The editor that receives a copy of every byte read
+     * @param index    The value index of the editor to write
+     * @param listener Called after the edit has been committed, may be null
+     * @throws IOException if the editor cannot open its output stream
+     */
+    public CacheTeeInputStream(final InputStream source, final DiskLruCache.Editor editor,
+                               final int index, final OnCommitListener listener) throws IOException {
+        this(source, editor, index, -1, listener);
+    }
+
+    /**
+     * @param expectedLength The length of the source, e.g. its Content-Length,
+     *                       or -1 if it is not known
+     */
+    public CacheTeeInputStream(final InputStream source, final DiskLruCache.Editor editor,
+                               final int index, final long expectedLength,
+                               final OnCommitListener listener) throws IOException {
+        super(source);
+        mEditor = editor;
+        mCacheOut = editor.newOutputStream(index);
+        mExpectedLength = expectedLength;
+        mListener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int oneByte;
+        try {
+            oneByte = in.read();
+        } catch (final IOException e) {
+            finish(false);
+            throw e;
+        }
+        if (oneByte == -1) {
+            finish(isComplete());
+        } else if (!mFinished) {
+            mCacheOut.write(oneByte);
+            written(1);
+        }
+        return oneByte;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+        final int readBytes;
+        try {
+            readBytes = in.read(buffer, offset, count);
+        } catch (final IOException e) {
+            finish(false);
+            throw e;
+        }
+        if (readBytes == -1) {
+            finish(isComplete());
+        } else if (!mFinished) {
+            mCacheOut.write(buffer, offset, readBytes);
+            written(readBytes);
+        }
+        return readBytes;
+    }
+
+    /**
+     * Skipped bytes still have to reach the cache, so they are read through.
+     */
+    @Override
+    public long skip(final long byteCount) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(byteCount, 4096)];
+        long skipped = 0;
+        while (skipped < byteCount) {
+            final int readBytes = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+            if (readBytes == -1) {
+                break;
+            }
+            skipped += readBytes;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(final int readLimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // Anything not read to the end is a partial body
+            finish(false);
+        } finally {
+            super.close();
+        }
+    }
+
+    /**
+     * @return False if the source ended short of the expected length
+     */
+    private boolean isComplete() {
+        return mExpectedLength < 0 || mBytesRead == mExpectedLength;
+    }
+
+    private void written(final int count) throws IOException {
+        mBytesRead += count;
+        if (mExpectedLength >= 0 && mBytesRead >= mExpectedLength) {
+            // More than expected is not the body the header describes
+            finish(mBytesRead == mExpectedLength);
+        }
+    }
+
+    private void finish(final boolean success) throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        DiskLruCache.closeQuietly(mCacheOut);
+        if (success) {
+            mEditor.commit();
+            if (mListener != null) {
+                mListener.onCommitted();
+            }
+        } else {
+            mEditor.abort();
+        }
+    }
+
+    public interface OnCommitListener {
+        void onCommitted();
+    }
+}
@@ -0,0 +1,63 @@
+package the.topmusic.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The operations {@link the.topmusic.utils.DiskCacheUtils} and its users need
+ * from a disk cache, implemented by {@link DiskLruCache} and by
+ * {@link ShardedDiskLruCache}.
+ */
+public interface DiskCache extends Closeable {
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist or is not currently readable.
+     */
+    DiskLruCache.Snapshot get(String key) throws IOException;
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    DiskLruCache.Editor edit(String key) throws IOException;
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed.
+     *
+     * @return true if an entry was removed
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * Force buffered operations to the filesystem.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    boolean isClosed();
+
+    /**
+     * Closes the cache and deletes all of its stored values.
+     */
+    void delete() throws IOException;
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    File getDirectory();
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    long maxSize();
+
+    /**
+     * Returns the number of bytes currently being used to store the values in
+     * this cache.
+     */
+    long size();
+}
@@ -26,6 +26,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -33,12 +34,17 @@ import java.lang.reflect.Array;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -89,8 +95,26 @@ import java.util.concurrent.TimeUnit;
  * error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ * <p/>
+ * In group commit mode (see {@link #setGroupCommit(long, int)}) journal
+ * records are not flushed one by one but in batches, once enough records are
+ * pending or the oldest one has waited long enough. A crash can lose the
+ * records of that last batch, and the cache recovers as follows when it is
+ * opened again:
+ * <ul>
+ * <li>A record cut off in the middle is dropped and the journal is rebuilt
+ * from the records before it, rather than appended to.
+ * <li>A lost DIRTY or REMOVE record, or a lost CLEAN record of a new entry,
+ * leaves files the journal does not know about. Every file in the directory
+ * that is neither the journal nor a value of a published entry is deleted.
+ * <li>A lost CLEAN record of an updated entry leaves the entry readable with
+ * the new values, since the rename is atomic, but with its old lengths until
+ * it is edited or the journal is rebuilt.
+ * <li>A lost READ record only affects the eviction order.
+ * </ul>
+ * Either way a reader sees every value as it was before or after a commit.
  */
-public final class DiskLruCache implements Closeable {
+public final class DiskLruCache implements DiskCache {
     static final String JOURNAL_FILE = "journal";
 
     static final String JOURNAL_FILE_TMP = "journal.tmp";
@@ -113,6 +137,20 @@ public final class DiskLruCache implements Closeable {
 
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /**
+     * Runs the timed journal flushes of every cache in group commit mode, on
+     * a thread of its own so they never hold up trimming
+     */
+    private static final ScheduledExecutorService journalFlushExecutor = new ScheduledThreadPoolExecutor(
+            1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "DiskLruCache journal flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this: libcore.io.DiskLruCache 1 100 2 CLEAN
@@ -162,6 +200,33 @@ public final class DiskLruCache implements Closeable {
     private long size = 0;
     private Writer journalWriter;
     private int redundantOpCount;
+    /**
+     * Group commit settings, a delay of 0 means every caller decides when to flush
+     */
+    private long groupCommitDelayMillis = 0;
+    private int groupCommitMaxRecords = 0;
+    /**
+     * Journal records written since the last flush in group commit mode
+     */
+    private int pendingRecords = 0;
+    private boolean journalFlushScheduled = false;
+    /**
+     * Flushes the pending journal records, scheduled when the first record of
+     * a batch is written. A batch flushed earlier because it grew too large
+     * leaves the next one to this flush, which only makes it come sooner.
+     */
+    private final Callable<Void> journalFlushCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                journalFlushScheduled = false;
+                if (pendingRecords > 0 && journalWriter != null) {
+                    flushJournal();
+                }
+            }
+            return null;
+        }
+    };
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override
         public Void call() throws Exception {
@@ -318,11 +383,16 @@ public final class DiskLruCache implements Closeable {
         DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, readOnly);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                final boolean truncated = cache.readJournal();
                 cache.processJournal();
                 if (!readOnly) {
-                    cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                            IO_BUFFER_SIZE);
+                    if (truncated) {
+                        // Appending to a cut off line would corrupt the next record
+                        cache.rebuildJournal();
+                    } else {
+                        cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
+                                IO_BUFFER_SIZE);
+                    }
                 }
                 return cache;
             } catch (final IOException journalIsCorrupt) {
@@ -356,7 +426,10 @@ public final class DiskLruCache implements Closeable {
         return readFully(new InputStreamReader(in, UTF_8));
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * @return True if the journal ends in a record that was cut off
+     */
+    private boolean readJournal() throws IOException {
         final InputStream in = new BufferedInputStream(new FileInputStream(journalFile),
                 IO_BUFFER_SIZE);
         try {
@@ -382,6 +455,21 @@ public final class DiskLruCache implements Closeable {
         } finally {
             closeQuietly(in);
         }
+        return !journalEndsWithNewline();
+    }
+
+    private boolean journalEndsWithNewline() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            final long length = file.length();
+            if (length == 0) {
+                return true;
+            }
+            file.seek(length - 1);
+            return file.read() == '\n';
+        } finally {
+            file.close();
+        }
     }
 
     private void readJournalLine(final String line) throws IOException {
@@ -436,6 +524,33 @@ public final class DiskLruCache implements Closeable {
                 i.remove();
             }
         }
+        if (!readOnly) {
+            deleteUnknownFiles();
+        }
+    }
+
+    /**
+     * Deletes the files of edits the journal does not know about, e.g. because
+     * their records were lost in a crash. No edit is in progress while the
+     * cache is being opened, so every dirty file is garbage too.
+     */
+    private void deleteUnknownFiles() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final Set<String> known = new HashSet<String>(lruEntries.size() * valueCount * 4 / 3 + 2);
+        known.add(JOURNAL_FILE);
+        for (final Entry entry : lruEntries.values()) {
+            for (int t = 0; t < valueCount; t++) {
+                known.add(entry.getCleanFile(t).getName());
+            }
+        }
+        for (final File file : files) {
+            if (file.isFile() && !known.contains(file.getName())) {
+                deleteIfExists(file);
+            }
+        }
     }
 
     /**
@@ -468,6 +583,7 @@ public final class DiskLruCache implements Closeable {
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
+        pendingRecords = 0;
         if (!readOnly) {
             journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
         }
@@ -515,7 +631,7 @@ public final class DiskLruCache implements Closeable {
 
         if (!readOnly) {
             redundantOpCount++;
-            journalWriter.append(READ + ' ' + key + '\n');
+            writeJournalRecord(READ + ' ' + key + '\n');
             if (journalRebuildRequired()) {
                 executorService.submit(cleanupCallable);
             }
@@ -555,9 +671,12 @@ public final class DiskLruCache implements Closeable {
         final Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        writeJournalRecord(DIRTY + ' ' + key + '\n');
+        if (groupCommitDelayMillis == 0) {
+            // flush the journal before creating files to prevent file leaks,
+            // in group commit mode such leaks are cleaned up on open instead
+            journalWriter.flush();
+        }
         return editor;
     }
 
@@ -623,13 +742,13 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            writeJournalRecord(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            writeJournalRecord(REMOVE + ' ' + entry.key + '\n');
         }
 
         if (size > maxSize || journalRebuildRequired()) {
@@ -671,7 +790,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        writeJournalRecord(REMOVE + ' ' + key + '\n');
         lruEntries.remove(key);
 
         if (journalRebuildRequired()) {
@@ -700,7 +819,50 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        flushJournal();
+    }
+
+    /**
+     * Switches group commit on or off. With group commit on, journal records
+     * are flushed in batches instead of whenever a caller flushes or an edit
+     * starts; see the class documentation for what a crash can lose. Callers
+     * no longer need to {@link #flush} after each edit.
+     *
+     * @param delayMillis How long a journal record may stay unflushed, 0 to
+     *                    switch group commit off
+     * @param maxRecords  How many records may be pending before they are
+     *                    flushed right away
+     */
+    public synchronized void setGroupCommit(final long delayMillis, final int maxRecords) throws IOException {
+        if (delayMillis < 0 || (delayMillis > 0 && maxRecords <= 0)) {
+            throw new IllegalArgumentException("delayMillis < 0 || maxRecords <= 0");
+        }
+        groupCommitDelayMillis = delayMillis;
+        groupCommitMaxRecords = maxRecords;
+        if (delayMillis == 0 && journalWriter != null) {
+            flushJournal();
+        }
+    }
+
+    private void writeJournalRecord(final String record) throws IOException {
+        journalWriter.write(record);
+        if (groupCommitDelayMillis == 0) {
+            return;
+        }
+        if (++pendingRecords >= groupCommitMaxRecords) {
+            flushJournal();
+        } else if (!journalFlushScheduled) {
+            journalFlushScheduled = true;
+            journalFlushExecutor.schedule(journalFlushCallable, groupCommitDelayMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.flush();
+        }
+        pendingRecords = 0;
     }
 
     /**
@@ -719,6 +881,7 @@ public final class DiskLruCache implements Closeable {
         trimToSize();
         journalWriter.close();
         journalWriter = null;
+        pendingRecords = 0;
     }
 
     private void trimToSize() throws IOException {
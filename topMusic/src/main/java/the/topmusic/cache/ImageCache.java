@@ -35,6 +35,7 @@ import com.actionbarsherlock.app.SherlockFragment;
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -62,6 +63,27 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
      */
     private static final float MEM_CACHE_DIVIDER = 0.25f;
 
+    /**
+     * Share of the memory cache kept by recency alone, in percent. Bitmaps are
+     * large, so this keeps the last few on screen regardless of frequency.
+     */
+    private static final int MEM_CACHE_WINDOW_PERCENT = 10;
+
+    /**
+     * Smallest and largest requested sizes, in pixels, that get a variant of
+     * their own. Requests are rounded up to a power of two in between, and
+     * bigger ones get the full image.
+     */
+    private static final int MIN_SIZE_CLASS = 32;
+
+    private static final int MAX_SIZE_CLASS = 2048;
+
+    /**
+     * Full images are still sampled down while both sides stay at least this
+     * big, as downloads are cached as they were sent
+     */
+    private static final int MAX_FULL_SIZE = 1024;
+
     /**
      * Default disk cache size 250MB
      */
@@ -87,13 +109,13 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
     }
 
     /**
-     * LRU cache
+     * Memory cache
      */
     private MemoryCache mLruCache;
     /**
      * Disk LRU cache
      */
-    private DiskLruCache mDiskCache;
+    private DiskCache mDiskCache;
     private DiskCacheUtils mCacheUtil = null;
 
     /**
@@ -250,6 +272,19 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
         addBitmapToMemCache(data, bitmap);
 
         // Add to disk cache
+        addBitmapToDiskCache(data, bitmap);
+    }
+
+    /**
+     * Adds a new image to the disk cache only
+     *
+     * @param data   The key used to store the image
+     * @param bitmap The {@link Bitmap} to cache
+     */
+    public void addBitmapToDiskCache(final String data, final Bitmap bitmap) {
+        if (data == null || bitmap == null) {
+            return;
+        }
         if (mDiskCache != null) {
             mCacheUtil.addToStreamedCache(mDiskCache, data, new DiskCacheUtils.AddToCacheBlock() {
                 @Override
@@ -271,12 +306,22 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
         if (data == null || bitmap == null) {
             return;
         }
-        // Add to memory cache
-        if (getBitmapFromMemCache(data) == null) {
+        // Add to memory cache, without counting the check as a request
+        if (!mLruCache.containsKey(data)) {
             mLruCache.put(data, bitmap);
         }
     }
 
+    /**
+     * Checks the memory cache without counting it as a request for the image
+     *
+     * @param data Unique identifier for which item to check
+     * @return True if the image is in the memory cache
+     */
+    public final boolean isInMemCache(final String data) {
+        return data != null && mLruCache != null && mLruCache.containsKey(data);
+    }
+
     /**
      * Fetches a cached image from the memory cache
      *
@@ -296,6 +341,103 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
         return null;
     }
 
+    /**
+     * @return True if the disk cache is open
+     */
+    public boolean hasDiskCache() {
+        return mDiskCache != null;
+    }
+
+    /**
+     * Opens the disk cache entry for {@code data}, to store an encoded image
+     * with {@link #commitToDiskCache(DiskLruCache.Editor, InputStream)}
+     *
+     * @param data The key used to store the image
+     * @return The editor, or null if there is no disk cache or the entry is
+     * being written elsewhere
+     */
+    public DiskLruCache.Editor editDiskCache(final String data) {
+        if (data == null || mDiskCache == null || mCacheUtil == null) {
+            return null;
+        }
+        return mCacheUtil.editCache(mDiskCache, data);
+    }
+
+    /**
+     * Stores an encoded image, e.g. a download, in the disk cache as is,
+     * without decoding and compressing it again. The entry is only written if
+     * {@code source} is read to its end.
+     *
+     * @param editor An editor from {@link #editDiskCache(String)}
+     * @param source The encoded image, may be null to give up the entry
+     * @return True if the image was stored
+     */
+    public boolean commitToDiskCache(final DiskLruCache.Editor editor, final InputStream source) {
+        if (mCacheUtil == null) {
+            return false;
+        }
+        return mCacheUtil.copyToStreamedCache(editor, source);
+    }
+
+    /**
+     * @param size A requested width and height in pixels, 0 for the full image
+     * @return The size the image is decoded for, 0 for the full image
+     */
+    public static int getSizeClass(final int size) {
+        if (size <= 0 || size > MAX_SIZE_CLASS) {
+            return 0;
+        }
+        int sizeClass = MIN_SIZE_CLASS;
+        while (sizeClass < size) {
+            sizeClass <<= 1;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * @param data      Unique identifier of the image
+     * @param sizeClass A size from {@link #getSizeClass(int)}
+     * @return The memory cache key of the variant of the image decoded for
+     * {@code sizeClass}
+     */
+    public static String getVariantKey(final String data, final int sizeClass) {
+        return sizeClass == 0 ? data : data + "@" + sizeClass;
+    }
+
+    /**
+     * @return The largest power of two to sample a {@code width} by
+     * {@code height} image by, so that both sides stay at least
+     * {@code sizeClass}. 1 for the full image.
+     */
+    public static int calculateInSampleSize(final int width, final int height, final int sizeClass) {
+        int inSampleSize = 1;
+        if (sizeClass > 0) {
+            while (width / (inSampleSize * 2) >= sizeClass
+                    && height / (inSampleSize * 2) >= sizeClass) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Scales a full image, e.g. one just downloaded, down to the variant for
+     * {@code sizeClass}.
+     *
+     * @param bitmap    The full image
+     * @param sizeClass A size from {@link #getSizeClass(int)}
+     * @return The scaled image, or {@code bitmap} if it is small enough
+     */
+    public Bitmap downsample(final Bitmap bitmap, final int sizeClass) {
+        final int inSampleSize = calculateInSampleSize(bitmap.getWidth(), bitmap.getHeight(),
+                sizeClass);
+        if (inSampleSize == 1) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() / inSampleSize,
+                bitmap.getHeight() / inSampleSize, true);
+    }
+
     /**
      * Fetches a cached image from the disk cache
      *
@@ -303,14 +445,26 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
      * @return The {@link Bitmap} if found in cache, null otherwise
      */
     public final Bitmap getBitmapFromDiskCache(final String data) {
+        return getBitmapFromDiskCache(data, 0);
+    }
+
+    /**
+     * Fetches a cached image from the disk cache, sampled down for a size
+     *
+     * @param data      Unique identifier for which item to get
+     * @param sizeClass A size from {@link #getSizeClass(int)}
+     * @return The {@link Bitmap} if found in cache, null otherwise
+     */
+    public final Bitmap getBitmapFromDiskCache(final String data, final int sizeClass) {
         if (data == null) {
             return null;
         }
 
         // Check in the memory cache here to avoid going to the disk cache less
         // often
-        if (getBitmapFromMemCache(data) != null) {
-            return getBitmapFromMemCache(data);
+        final Bitmap lruBitmap = getBitmapFromMemCache(getVariantKey(data, sizeClass));
+        if (lruBitmap != null) {
+            return lruBitmap;
         }
 
         while (mPauseDiskAccess) {
@@ -323,6 +477,15 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
             mCacheUtil.getFileStreamFromCache(mDiskCache, data, new GetFromCacheBlock() {
                 @Override
                 public void readFrom(InputStream inputStream) {
+                    if (inputStream instanceof FileInputStream) {
+                        try {
+                            bitmap[0] = decodeFileDescriptor(((FileInputStream) inputStream).getFD(),
+                                    sizeClass);
+                            return;
+                        } catch (final IOException e) {
+                            Log.e(TAG, "getBitmapFromDiskCache - " + e);
+                        }
+                    }
                     bitmap[0] = BitmapFactory.decodeStream(inputStream);
                 }
 
@@ -349,15 +512,28 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
      * @return The {@link Bitmap} if found in cache, null otherwise
      */
     public final Bitmap getCachedBitmap(final String data) {
+        return getCachedBitmap(data, 0);
+    }
+
+    /**
+     * Tries to return a cached image from memory cache before fetching from the
+     * disk cache, sampled down for a size
+     *
+     * @param data      Unique identifier for which item to get
+     * @param sizeClass A size from {@link #getSizeClass(int)}
+     * @return The {@link Bitmap} if found in cache, null otherwise
+     */
+    public final Bitmap getCachedBitmap(final String data, final int sizeClass) {
         if (data == null) {
             return null;
         }
-        Bitmap cachedImage = getBitmapFromMemCache(data);
+        final String variantKey = getVariantKey(data, sizeClass);
+        Bitmap cachedImage = getBitmapFromMemCache(variantKey);
         if (cachedImage == null) {
-            cachedImage = getBitmapFromDiskCache(data);
+            cachedImage = getBitmapFromDiskCache(data, sizeClass);
         }
         if (cachedImage != null) {
-            addBitmapToMemCache(data, cachedImage);
+            addBitmapToMemCache(variantKey, cachedImage);
             return cachedImage;
         }
         return null;
@@ -373,15 +549,31 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
      * @return The artwork for an album
      */
     public final Bitmap getCachedArtwork(final Context context, final String data, final String id) {
+        return getCachedArtwork(context, data, id, 0);
+    }
+
+    /**
+     * Tries to return the album art from memory cache and disk cache, before
+     * calling {@code #getArtworkFromFile(Context, String, int)} again,
+     * sampled down for a size
+     *
+     * @param context   The {@link Context} to use
+     * @param data      The name of the album art
+     * @param id        The ID of the album to find artwork for
+     * @param sizeClass A size from {@link #getSizeClass(int)}
+     * @return The artwork for an album
+     */
+    public final Bitmap getCachedArtwork(final Context context, final String data, final String id,
+                                         final int sizeClass) {
         if (context == null || data == null) {
             return null;
         }
-        Bitmap cachedImage = getCachedBitmap(data);
+        Bitmap cachedImage = getCachedBitmap(data, sizeClass);
         if (cachedImage == null && id != null) {
-            cachedImage = getArtworkFromFile(context, id);
+            cachedImage = getArtworkFromFile(context, id, sizeClass);
         }
         if (cachedImage != null) {
-            addBitmapToMemCache(data, cachedImage);
+            addBitmapToMemCache(getVariantKey(data, sizeClass), cachedImage);
             return cachedImage;
         }
         return null;
@@ -395,6 +587,20 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
      * @return The artwork for an album
      */
     public final Bitmap getArtworkFromFile(final Context context, final String albumId) {
+        return getArtworkFromFile(context, albumId, 0);
+    }
+
+    /**
+     * Used to fetch the artwork for an album locally from the user's device,
+     * sampled down for a size
+     *
+     * @param context   The {@link Context} to use
+     * @param albumId   The ID of the album to find artwork for
+     * @param sizeClass A size from {@link #getSizeClass(int)}
+     * @return The artwork for an album
+     */
+    public final Bitmap getArtworkFromFile(final Context context, final String albumId,
+                                           final int sizeClass) {
         if (TextUtils.isEmpty(albumId)) {
             return null;
         }
@@ -408,7 +614,7 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
                     .openFileDescriptor(uri, "r");
             if (parcelFileDescriptor != null) {
                 final FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-                artwork = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+                artwork = decodeFileDescriptor(fileDescriptor, sizeClass);
             }
         } catch (final IllegalStateException e) {
             // Log.e(TAG, "IllegalStateExcetpion - getArtworkFromFile - ", e);
@@ -422,6 +628,24 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
     }
 
 
+    /**
+     * Decodes an image, sampled down for a size. Decoding from a file
+     * descriptor leaves its position alone, so the bounds can be read first.
+     *
+     * @param fileDescriptor The image to decode
+     * @param sizeClass      A size from {@link #getSizeClass(int)}
+     * @return The decoded {@link Bitmap}, or null
+     */
+    private Bitmap decodeFileDescriptor(final FileDescriptor fileDescriptor, final int sizeClass) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                sizeClass == 0 ? MAX_FULL_SIZE : sizeClass);
+        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+    }
+
     /**
      * Clears the disk and memory caches
      */
@@ -482,6 +706,42 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
         System.gc();
     }
 
+    /**
+     * @return The number of memory cache lookups that found a bitmap
+     */
+    public int getMemoryHitCount() {
+        return mLruCache != null ? mLruCache.hitCount() : 0;
+    }
+
+    /**
+     * @return The number of memory cache lookups that found nothing
+     */
+    public int getMemoryMissCount() {
+        return mLruCache != null ? mLruCache.missCount() : 0;
+    }
+
+    /**
+     * @return The number of bitmaps evicted for ones that are used more often
+     */
+    public int getMemorySizeEvictionCount() {
+        return mLruCache != null ? mLruCache.sizeEvictionCount() : 0;
+    }
+
+    /**
+     * @return The number of new bitmaps not kept because they are used less
+     * often than the ones already cached
+     */
+    public int getMemoryRejectionCount() {
+        return mLruCache != null ? mLruCache.rejectionCount() : 0;
+    }
+
+    /**
+     * @return The number of bitmaps dropped to release memory
+     */
+    public int getMemoryTrimCount() {
+        return mLruCache != null ? mLruCache.trimCount() : 0;
+    }
+
     /**
      * @param key The key used to identify which cache entries to delete.
      */
@@ -489,9 +749,12 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
         if (key == null) {
             return;
         }
-        // Remove the Lru entry
+        // Remove the Lru entry and its variants
         if (mLruCache != null) {
             mLruCache.remove(key);
+            for (int sizeClass = MIN_SIZE_CLASS; sizeClass <= MAX_SIZE_CLASS; sizeClass <<= 1) {
+                mLruCache.remove(getVariantKey(key, sizeClass));
+            }
         }
 
         mCacheUtil.removeKeyFromCache(mDiskCache, key);
@@ -530,7 +793,7 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
     }
 
     @Override
-    public void setCache(DiskLruCache cache) {
+    public void setCache(DiskCache cache) {
         mDiskCache = cache;
     }
 
@@ -587,17 +850,18 @@ public final class ImageCache implements DiskCacheUtils.DiskCacheUser {
     }
 
     /**
-     * Used to cache images via {@link LruCache}.
+     * Used to cache images via {@link TinyLfuCache}, so a fast fling through a
+     * long list does not evict the artwork that is shown all the time.
      */
-    public static final class MemoryCache extends LruCache<String, Bitmap> {
+    public static final class MemoryCache extends TinyLfuCache<String, Bitmap> {
 
         /**
          * Constructor of <code>MemoryCache</code>
          *
-         * @param maxSize The allowed size of the {@link LruCache}
+         * @param maxSize The allowed size of the {@link TinyLfuCache} in bytes
          */
         public MemoryCache(final int maxSize) {
-            super(maxSize);
+            super(maxSize, MEM_CACHE_WINDOW_PERCENT);
         }
 
         /**
@@ -26,6 +26,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import the.topmusic.Config;
 import the.topmusic.MusicPlaybackService;
@@ -44,8 +47,14 @@ import the.topmusic.utils.TopMusicUtils;
  */
 public class ImageFetcher extends ImageWorker {
 
-    public static final int IO_BUFFER_SIZE_BYTES = 1024;
+    public static final int IO_BUFFER_SIZE_BYTES = 8 * 1024;
     private static final String TAG = ImageFetcher.class.getSimpleName();
+    /**
+     * Downloads into the disk cache in progress, by key, so a second request
+     * for an image, e.g. a prefetch and a bind, waits for the first instead
+     * of downloading it again
+     */
+    private static final ConcurrentMap<String, CountDownLatch> sDownloads = new ConcurrentHashMap<String, CountDownLatch>();
     private static final int DEFAULT_MAX_IMAGE_HEIGHT = 1024;
 
     private static final int DEFAULT_MAX_IMAGE_WIDTH = 1024;
@@ -109,9 +118,15 @@ public class ImageFetcher extends ImageWorker {
                     IO_BUFFER_SIZE_BYTES);
             out = new BufferedOutputStream(new FileOutputStream(tempFile), IO_BUFFER_SIZE_BYTES);
 
-            int oneByte;
-            while ((oneByte = in.read()) != -1) {
-                out.write(oneByte);
+            final byte[] buffer = new byte[IO_BUFFER_SIZE_BYTES];
+            int readBytes;
+            while ((readBytes = in.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // The image is no longer wanted
+                    tempFile.delete();
+                    return null;
+                }
+                out.write(buffer, 0, readBytes);
             }
             return tempFile;
         } catch (final IOException ignored) {
@@ -246,42 +261,140 @@ public class ImageFetcher extends ImageWorker {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean downloadBitmapToCache(final String url, final String key) {
+        if (url == null || key == null || mImageCache == null) {
+            return false;
+        }
+        final CountDownLatch download = new CountDownLatch(1);
+        final CountDownLatch running = sDownloads.putIfAbsent(key, download);
+        if (running != null) {
+            // Read whatever the running download stored
+            try {
+                running.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+        try {
+            return downloadToEntry(url, key);
+        } finally {
+            sDownloads.remove(key, download);
+            download.countDown();
+        }
+    }
+
+    /**
+     * Downloads an image into its disk cache entry, if no one else is writing
+     * the entry
+     *
+     * @return True if the image was stored
+     */
+    private boolean downloadToEntry(final String url, final String key) {
+        // Claim the entry first, so a busy entry doesn't cost a download
+        final DiskLruCache.Editor editor = mImageCache.editDiskCache(key);
+        if (editor == null) {
+            return false;
+        }
+
+        disableConnectionReuseIfNecessary();
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
+        try {
+            final URL imageUrl = new URL(url);
+            urlConnection = (HttpURLConnection) imageUrl.openConnection();
+            urlConnection.setUseCaches(false);
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                in = urlConnection.getInputStream();
+            }
+        } catch (final IOException ignored) {
+        }
+        try {
+            // Gives up the entry if there is nothing to read
+            return mImageCache.commitToDiskCache(editor, in);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException ignored) {
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     protected String processImageUrl(final String artistName, final String albumName,
                                      final ImageType imageType) {
+        final ArtworkUrlCache urlCache = ArtworkUrlCache.getInstance(mContext);
         switch (imageType) {
             case ARTIST:
                 if (!TextUtils.isEmpty(artistName)) {
                     if (PreferenceUtils.getInstace(mContext).downloadMissingArtistImages()) {
-                        final PaginatedResult<Image> paginatedResult = Artist.getImages(mContext,
-                                artistName);
-                        if (paginatedResult != null) {
-                            for (Image temp : paginatedResult.pageResults) {
-                                final String url = temp.getImageURL(ImageSize.EXTRALARGE);
-                                if (url != null) {
-                                    return url;
-                                }
-                            }
-                        }
+                        return urlCache.resolve(ArtworkUrlCache.artistImageKey(artistName),
+                                new ArtworkUrlCache.Resolver() {
+                                    @Override
+                                    public String resolve() {
+                                        final PaginatedResult<Image> paginatedResult = Artist
+                                                .getImages(mContext, artistName);
+                                        if (paginatedResult == null) {
+                                            return null;
+                                        }
+                                        for (Image temp : paginatedResult.pageResults) {
+                                            final String url = temp.getImageURL(ImageSize.EXTRALARGE);
+                                            if (url != null) {
+                                                return url;
+                                            }
+                                        }
+                                        return ArtworkUrlCache.NOT_FOUND;
+                                    }
+                                });
                     }
                 }
                 break;
             case ALBUM:
                 if (!TextUtils.isEmpty(artistName) && !TextUtils.isEmpty(albumName)) {
                     if (PreferenceUtils.getInstace(mContext).downloadMissingArtwork()) {
-                        final Artist correction = Artist.getCorrection(mContext, artistName);
+                        // Shared by all albums of the artist
+                        final String correction = urlCache.resolve(
+                                ArtworkUrlCache.artistCorrectionKey(artistName),
+                                new ArtworkUrlCache.Resolver() {
+                                    @Override
+                                    public String resolve() {
+                                        final Artist artist = Artist.getCorrection(mContext,
+                                                artistName);
+                                        if (artist == null) {
+                                            return notFoundIfOnline();
+                                        }
+                                        return artist.getName() != null ? artist.getName()
+                                                : ArtworkUrlCache.NOT_FOUND;
+                                    }
+                                });
                         if (correction != null) {
-                            final Album album = Album.getInfo(mContext, correction.getName(),
-                                    albumName);
-                            if (album != null) {
-                                final String url = album.getImageURL(ImageSize.LARGE);
-                                if (url != null) {
-                                    return url;
-                                }
-                            }
+                            return urlCache.resolve(
+                                    ArtworkUrlCache.albumImageKey(correction, albumName),
+                                    new ArtworkUrlCache.Resolver() {
+                                        @Override
+                                        public String resolve() {
+                                            final Album album = Album.getInfo(mContext, correction,
+                                                    albumName);
+                                            if (album == null) {
+                                                return notFoundIfOnline();
+                                            }
+                                            final String url = album.getImageURL(ImageSize.LARGE);
+                                            return url != null ? url : ArtworkUrlCache.NOT_FOUND;
+                                        }
+                                    });
                         }
                     }
                 }
@@ -292,6 +405,14 @@ public class ImageFetcher extends ImageWorker {
         return null;
     }
 
+    /**
+     * Last.fm lookups return nothing both when the item is unknown and when
+     * the request failed, only remember a miss if we were online for it
+     */
+    private String notFoundIfOnline() {
+        return TopMusicUtils.isOnline(mContext) ? ArtworkUrlCache.NOT_FOUND : null;
+    }
+
     /**
      * Used to fetch album images.
      */
@@ -308,6 +429,39 @@ public class ImageFetcher extends ImageWorker {
                 ImageType.ALBUM);
     }
 
+    /**
+     * Used to fetch album images decoded for a size in pixels, for views that
+     * are not laid out yet.
+     */
+    public void loadAlbumImage(final String artistName, final String albumName, final String index,
+                               final ImageView imageView, final int size) {
+        loadImage(albumName + Config.ALBUM_ART_SUFFIX, artistName, albumName, index, imageView,
+                ImageType.ALBUM, size);
+    }
+
+    /**
+     * Used to prefetch album images for views about to be shown.
+     */
+    public void prefetchAlbumImage(final String artistName, final String albumName,
+                                   final String index, final int size) {
+        prefetchImage(albumName + Config.ALBUM_ART_SUFFIX, artistName, albumName, index,
+                ImageType.ALBUM, size);
+    }
+
+    /**
+     * Used to prefetch artist images for views about to be shown.
+     */
+    public void prefetchArtistImage(final String key, final int size) {
+        prefetchImage(key, key, null, null, ImageType.ARTIST, size);
+    }
+
+    /**
+     * Used to prefetch images for views about to be shown.
+     */
+    public void prefetchImageFromURL(final String url, final int size) {
+        prefetchImage(url, size);
+    }
+
     /**
      * Used to fetch the current artwork.
      */
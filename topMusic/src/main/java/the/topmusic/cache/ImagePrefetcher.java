@@ -0,0 +1,125 @@
+package the.topmusic.cache;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+/**
+ * Follows the scrolling of a list or grid and, once it comes to rest, has its
+ * adapter prefetch the images of the positions about to appear next in the
+ * direction it was scrolled. The faster the last scroll was, the further
+ * ahead it prefetches. Scrolling the other way cancels what is still pending.
+ * <p/>
+ * Lists forward their {@link AbsListView.OnScrollListener} calls here.
+ */
+public final class ImagePrefetcher {
+
+    /**
+     * How far ahead to prefetch, in seconds of scrolling at the peak speed of
+     * the last scroll
+     */
+    private static final float LOOKAHEAD_SECONDS = 0.5f;
+
+    /**
+     * Most positions prefetched past the visible ones at once
+     */
+    private static final int MAX_PREFETCH_POSITIONS = 30;
+
+    private final ImageWorker mImageWorker;
+
+    private final Prefetchable mAdapter;
+
+    private int mFirstVisibleItem = -1;
+
+    private int mVisibleItemCount;
+
+    private int mTotalItemCount;
+
+    /**
+     * 1 scrolling down, -1 up
+     */
+    private int mDirection = 1;
+
+    private long mLastScrollTime;
+
+    /**
+     * Peak speed since the list was last at rest, in positions per second
+     */
+    private float mPeakVelocity;
+
+    /**
+     * @param imageWorker The {@link ImageWorker} loading the images of the list
+     * @param adapter     The adapter of the list
+     */
+    public ImagePrefetcher(final ImageWorker imageWorker, final Prefetchable adapter) {
+        mImageWorker = imageWorker;
+        mAdapter = adapter;
+    }
+
+    /**
+     * @see AbsListView.OnScrollListener#onScroll(AbsListView, int, int, int)
+     */
+    public void onScroll(final int firstVisibleItem, final int visibleItemCount,
+                         final int totalItemCount) {
+        final long now = SystemClock.uptimeMillis();
+        if (mFirstVisibleItem >= 0 && firstVisibleItem != mFirstVisibleItem) {
+            final int direction = firstVisibleItem > mFirstVisibleItem ? 1 : -1;
+            if (direction != mDirection) {
+                // What was prefetched for the other way is not wanted now
+                mImageWorker.cancelPrefetches();
+                mDirection = direction;
+                mPeakVelocity = 0;
+            }
+            final long elapsed = now - mLastScrollTime;
+            if (elapsed > 0) {
+                final float velocity = Math.abs(firstVisibleItem - mFirstVisibleItem) * 1000f
+                        / elapsed;
+                mPeakVelocity = Math.max(mPeakVelocity, velocity);
+            }
+        }
+        if (firstVisibleItem != mFirstVisibleItem) {
+            mLastScrollTime = now;
+        }
+        mFirstVisibleItem = firstVisibleItem;
+        mVisibleItemCount = visibleItemCount;
+        mTotalItemCount = totalItemCount;
+    }
+
+    /**
+     * @see AbsListView.OnScrollListener#onScrollStateChanged(AbsListView, int)
+     */
+    public void onScrollStateChanged(final int scrollState) {
+        if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+            prefetch();
+        }
+    }
+
+    private void prefetch() {
+        if (mFirstVisibleItem < 0 || mVisibleItemCount <= 0) {
+            return;
+        }
+        final int count = Math.min(MAX_PREFETCH_POSITIONS, mVisibleItemCount
+                + Math.round(mPeakVelocity * LOOKAHEAD_SECONDS));
+        mPeakVelocity = 0;
+        // Nearest first, they are needed first
+        for (int i = 1; i <= count; i++) {
+            final int position = mDirection > 0 ? mFirstVisibleItem + mVisibleItemCount - 1 + i
+                    : mFirstVisibleItem - i;
+            if (position < 0 || position >= mTotalItemCount) {
+                return;
+            }
+            mAdapter.prefetchImage(position);
+        }
+    }
+
+    /**
+     * An adapter that can load the images of a position before it is shown
+     */
+    public interface Prefetchable {
+        /**
+         * Prefetches the images of {@code position} with
+         * {@link ImageFetcher#prefetchAlbumImage(String, String, String, int)}
+         * or the like
+         */
+        void prefetchImage(int position);
+    }
+}
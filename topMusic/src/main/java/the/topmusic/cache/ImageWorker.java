@@ -19,11 +19,24 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import the.topmusic.R;
 import the.topmusic.utils.TopMusicUtils;
@@ -42,6 +55,43 @@ public abstract class ImageWorker {
      */
     private static final int FADE_IN_TIME = 200;
 
+    /**
+     * Threads reading images from the disk cache and the device
+     */
+    private static final int DISK_THREADS = 2;
+
+    /**
+     * Threads looking up and downloading images
+     */
+    private static final int NETWORK_THREADS = 3;
+
+    /**
+     * How long idle image threads are kept, in seconds
+     */
+    private static final int THREAD_KEEP_ALIVE = 30;
+
+    /**
+     * Most prefetches queued or running at once
+     */
+    private static final int PREFETCH_BUDGET = 16;
+
+    /**
+     * Image work is kept apart from the shared {@link android.os.AsyncTask}
+     * pool, and disk reads never wait behind downloads
+     */
+    private static final ThreadPoolExecutor sDiskExecutor = newImageExecutor(DISK_THREADS,
+            "ImageWorker disk");
+
+    private static final ThreadPoolExecutor sNetworkExecutor = newImageExecutor(NETWORK_THREADS,
+            "ImageWorker network");
+
+    /**
+     * Orders the tasks, the most recently started one runs first
+     */
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Default artwork
      */
@@ -57,11 +107,6 @@ public abstract class ImageWorker {
      */
     private final ColorDrawable mCurrentDrawable;
 
-    /**
-     * Layer drawable used to cross fade the result from the worker
-     */
-    private final Drawable[] mArrayDrawable;
-
     /**
      * Default album art
      */
@@ -77,6 +122,11 @@ public abstract class ImageWorker {
      */
     protected ImageCache mImageCache;
 
+    /**
+     * Prefetches queued or running, by key
+     */
+    private final Map<String, BitmapWorkerTask> mPrefetches = new HashMap<String, BitmapWorkerTask>();
+
     /**
      * Constructor of <code>ImageWorker</code>
      * 
@@ -94,10 +144,21 @@ public abstract class ImageWorker {
         mDefaultArtwork.setDither(false);
         // Create the transparent layer for the transition drawable
         mCurrentDrawable = new ColorDrawable(mResources.getColor(R.color.transparent));
-        // A transparent image (layer 0) and the new result (layer 1)
-        mArrayDrawable = new Drawable[2];
-        mArrayDrawable[0] = mCurrentDrawable;
-        // XXX The second layer is set in the worker task.
+    }
+
+    private static ThreadPoolExecutor newImageExecutor(final int threads, final String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(runnable, name + " #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
@@ -157,15 +218,23 @@ public abstract class ImageWorker {
     }
 
     /**
-     * The actual {@link AsyncTask} that will process the image.
+     * The work that will process the image. It first runs on the disk
+     * executor, checking the caches and the device, and moves on to the
+     * network executor only if the image has to be downloaded.
      */
-    private final class BitmapWorkerTask extends AsyncTask<String, Void, TransitionDrawable> {
+    private final class BitmapWorkerTask implements Runnable, Comparable<BitmapWorkerTask> {
 
         /**
          * The {@link ImageView} used to set the result
          */
         private final WeakReference<ImageView> mImageReference;
 
+        /**
+         * True if the image is only loaded into the caches, for a view that is
+         * about to be shown
+         */
+        private final boolean mPrefetch;
+
         /**
          * Type of URL to download
          */
@@ -176,6 +245,12 @@ public abstract class ImageWorker {
          */
         private String mKey;
 
+        /**
+         * The size to decode the image for, see
+         * {@link ImageCache#getSizeClass(int)}
+         */
+        private final int mSizeClass;
+
         /**
          * Artist name param
          */
@@ -196,42 +271,150 @@ public abstract class ImageWorker {
          */
         private String mUrl;
 
+        /**
+         * The key, artist name, album name and album ID, or just the URL
+         */
+        private final String[] mParams;
+
+        /**
+         * Later tasks have higher numbers and run first
+         */
+        private final long mSequence = sSequence.incrementAndGet();
+
+        private volatile boolean mCancelled;
+
+        /**
+         * True once the task has moved on to the network executor
+         */
+        private volatile boolean mNetworkStage;
+
+        /**
+         * The thread running the task, guarded by the task itself
+         */
+        private Thread mThread;
+
         /**
          * Constructor of <code>BitmapWorkerTask</code>
          * 
-         * @param imageView The {@link ImageView} to use.
+         * @param imageView The {@link ImageView} to use, null to prefetch.
          * @param imageType The type of image URL to fetch for.
+         * @param sizeClass The size to decode the image for
+         * @param params The key, artist name, album name and album ID, or just
+         *            the URL to download
          */
         @SuppressWarnings("deprecation")
-        public BitmapWorkerTask(final ImageView imageView, final ImageType imageType) {
-            imageView.setBackgroundDrawable(mDefaultArtwork);
+        public BitmapWorkerTask(final ImageView imageView, final ImageType imageType,
+                final int sizeClass, final String... params) {
+            mPrefetch = imageView == null;
+            if (!mPrefetch) {
+                imageView.setBackgroundDrawable(mDefaultArtwork);
+            }
             mImageReference = new WeakReference<ImageView>(imageView);
             mImageType = imageType;
+            mSizeClass = sizeClass;
+            mParams = params;
+            // Known up front so a new request for the same view can compare
+            mKey = params[0];
+        }
+
+        /**
+         * Queues the task on the disk executor
+         */
+        public void start() {
+            sDiskExecutor.execute(this);
+        }
+
+        /**
+         * Stops the task: it is taken off the queue it waits in, a running
+         * download is interrupted and the result is never set.
+         */
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                if (mThread != null && mNetworkStage) {
+                    mThread.interrupt();
+                }
+            }
+            if (!sDiskExecutor.remove(this)) {
+                sNetworkExecutor.remove(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
         }
 
         /**
          * {@inheritDoc}
          */
         @Override
-        protected TransitionDrawable doInBackground(final String... params) {
-            // Define the key
-            mKey = params[0];
+        public int compareTo(final BitmapWorkerTask another) {
+            // Bound views before prefetches
+            if (mPrefetch != another.mPrefetch) {
+                return mPrefetch ? 1 : -1;
+            }
+            if (mPrefetch) {
+                // Prefetches are queued nearest first, keep that order
+                return mSequence < another.mSequence ? -1 : mSequence > another.mSequence ? 1 : 0;
+            }
+            // The most recently bound view first
+            return mSequence > another.mSequence ? -1 : mSequence < another.mSequence ? 1 : 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mThread = Thread.currentThread();
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final boolean networkStage = mNetworkStage;
+            try {
+                if (mNetworkStage) {
+                    fetchFromNetwork();
+                } else {
+                    fetchFromDisk();
+                }
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                }
+                // Don't leave a late interrupt for the next task on this thread
+                Thread.interrupted();
+                if (mPrefetch && (networkStage || !mNetworkStage)) {
+                    // Done, unless just moved on to the network executor
+                    removePrefetch(this);
+                }
+            }
+        }
+
+        /**
+         * Looks for the image in the caches and on the device, and passes the
+         * task on to the network executor if it is not found.
+         */
+        private void fetchFromDisk() {
+            final String[] params = mParams;
 
             // The result
             Bitmap bitmap = null;
 
-            // Wait here if work is paused and the task is not cancelled. This
-            // shouldn't even occur because this isn't executing while the user
-            // is scrolling, but just in case.
-            while (isScrolling() && !isCancelled()) {
-                cancel(true);
+            // This shouldn't even occur because this isn't started while the
+            // user is scrolling, but just in case.
+            if (isScrolling()) {
+                mCancelled = true;
+                return;
             }
 
             // First, check the disk cache for the image
-            if (mKey != null && mImageCache != null && !isCancelled()
-                    && getAttachedImageView() != null) {
-                bitmap = mImageCache.getCachedBitmap(mKey);
+            if (mKey != null && mImageCache != null && !isCancelled() && isWanted()) {
+                bitmap = mImageCache.getCachedBitmap(mKey, mSizeClass);
             }
+            final boolean isCached = bitmap != null;
 
             if (params.length > 1) {
                 // Get from lastfm with Album/Artist
@@ -240,65 +423,117 @@ public abstract class ImageWorker {
 
                 // Second, if we're fetching artwork, check the device for the image
                 if (bitmap == null && mImageType.equals(ImageType.ALBUM) && mAlbumId != null
-                        && mKey != null && !isCancelled() && getAttachedImageView() != null
+                        && mKey != null && !isCancelled() && isWanted()
                         && mImageCache != null) {
-                    bitmap = mImageCache.getCachedArtwork(mContext, mKey, mAlbumId);
+                    bitmap = mImageCache.getCachedArtwork(mContext, mKey, mAlbumId, mSizeClass);
                 }
 
                 // Third, by now we need to download the image
-                if (bitmap == null && TopMusicUtils.isOnline(mContext) && !isCancelled()
-                        && getAttachedImageView() != null) {
-                    // Now define what the artist name, album name, and url are.
-                    mArtistName = params[1];
-                    mAlbumName = params[2];
-                    mUrl = processImageUrl(mArtistName, mAlbumName, mImageType);
-                    if (mUrl != null) {
-                        bitmap = processBitmap(mUrl);
-                    }
+                if (bitmap == null && TopMusicUtils.isOnline(mContext)) {
+                    moveToNetwork();
+                    return;
                 }
             } else {
                 // Directly download from URL
-                if (bitmap == null && !isCancelled() && getAttachedImageView() != null) {
-                    mUrl = params[0];
-                    if (mUrl != null) {
-                        bitmap = processBitmap(mUrl);
-                    }
+                if (bitmap == null) {
+                    moveToNetwork();
+                    return;
                 }
             }
-
-            // Add the new image to the cache
-            if (bitmap != null && mKey != null && mImageCache != null) {
+            // Artwork from the device goes to the disk cache only in full
+            if (bitmap != null && !isCached && mSizeClass == 0) {
                 addBitmapToCache(mKey, bitmap);
             }
+            finish(bitmap);
+        }
 
-            // Add the second layer to the transiation drawable
-            if (bitmap != null) {
-                final BitmapDrawable layerTwo = new BitmapDrawable(mResources, bitmap);
-                layerTwo.setFilterBitmap(false);
-                layerTwo.setDither(false);
-                mArrayDrawable[1] = layerTwo;
-
-                // Finally, return the image
-                final TransitionDrawable result = new TransitionDrawable(mArrayDrawable);
-                result.setCrossFadeEnabled(true);
-                result.startTransition(FADE_IN_TIME);
-                return result;
+        private void moveToNetwork() {
+            if (!isCancelled() && isWanted()) {
+                mNetworkStage = true;
+                sNetworkExecutor.execute(this);
             }
-            return null;
         }
 
         /**
-         * {@inheritDoc}
+         * Looks up the URL of the image if needed and downloads it.
          */
-        @Override
-        protected void onPostExecute(TransitionDrawable result) {
+        private void fetchFromNetwork() {
+            final String[] params = mParams;
+            Bitmap bitmap = null;
+            if (params.length > 1) {
+                // Now define what the artist name, album name, and url are.
+                mArtistName = params[1];
+                mAlbumName = params[2];
+                mUrl = processImageUrl(mArtistName, mAlbumName, mImageType);
+            } else {
+                mUrl = params[0];
+            }
+            if (mUrl == null || isCancelled() || !isWanted()) {
+                return;
+            }
+            if (mKey != null && mImageCache != null && mImageCache.hasDiskCache()) {
+                // Decoded straight from the disk cache, for the requested size. A
+                // failed download is not tried again with processBitmap
+                if (downloadBitmapToCache(mUrl, mKey) && !isCancelled()) {
+                    finish(mImageCache.getCachedBitmap(mKey, mSizeClass));
+                }
+                return;
+            }
             if (isCancelled()) {
-                result = null;
+                return;
             }
-            final ImageView imageView = getAttachedImageView();
-            if (result != null && imageView != null) {
-                imageView.setImageDrawable(result);
+            bitmap = processBitmap(mUrl);
+            if (bitmap != null && mKey != null && mImageCache != null) {
+                if (mSizeClass == 0) {
+                    addBitmapToCache(mKey, bitmap);
+                } else {
+                    // The disk cache keeps the full image for every size
+                    mImageCache.addBitmapToDiskCache(mKey, bitmap);
+                    bitmap = mImageCache.downsample(bitmap, mSizeClass);
+                    mImageCache.addBitmapToMemCache(ImageCache.getVariantKey(mKey, mSizeClass),
+                            bitmap);
+                }
             }
+            finish(bitmap);
+        }
+
+        /**
+         * Hands the image to the main thread to be shown.
+         *
+         * @param bitmap The image, may be null
+         */
+        private void finish(final Bitmap bitmap) {
+            if (bitmap == null || mPrefetch) {
+                return;
+            }
+
+            // A transparent image (layer 0) and the new result (layer 1)
+            final BitmapDrawable layerTwo = new BitmapDrawable(mResources, bitmap);
+            layerTwo.setFilterBitmap(false);
+            layerTwo.setDither(false);
+            final TransitionDrawable result = new TransitionDrawable(new Drawable[] {
+                    mCurrentDrawable, layerTwo
+            });
+            result.setCrossFadeEnabled(true);
+            sMainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    final ImageView imageView = getAttachedImageView();
+                    if (!isCancelled() && imageView != null) {
+                        imageView.setImageDrawable(result);
+                        result.startTransition(FADE_IN_TIME);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return True if the result is still needed: the task prefetches or
+         *         its view still waits for it
+         */
+        private boolean isWanted() {
+            return mPrefetch || getAttachedImageView() != null;
         }
 
         /**
@@ -324,7 +559,7 @@ public abstract class ImageWorker {
     public static void cancelWork(final ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.cancel();
         }
     }
 
@@ -338,7 +573,7 @@ public abstract class ImageWorker {
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.mKey;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.cancel();
             } else {
                 // The same work is already in progress
                 return false;
@@ -407,17 +642,40 @@ public abstract class ImageWorker {
      */
     protected void loadImage(final String key, final String artistName, final String albumName,
             final String albumId, final ImageView imageView, final ImageType imageType) {
+        loadImage(key, artistName, albumName, albumId, imageView, imageType,
+                getRequestedSize(imageView));
+    }
+
+    /**
+     * Called to fetch the artist or ablum art, decoded for a size.
+     * 
+     * @param key The unique identifier for the image.
+     * @param artistName The artist name for the Last.fm API.
+     * @param albumName The album name for the Last.fm API.
+     * @param albumId The album art index, to check for missing artwork.
+     * @param imageView The {@link ImageView} used to set the cached
+     *            {@link Bitmap}.
+     * @param imageType The type of image URL to fetch for.
+     * @param size The width and height in pixels to decode the image for, 0
+     *            for the full image.
+     */
+    protected void loadImage(final String key, final String artistName, final String albumName,
+            final String albumId, final ImageView imageView, final ImageType imageType,
+            final int size) {
         if (key == null || mImageCache == null || imageView == null) {
             return;
         }
+        final int sizeClass = ImageCache.getSizeClass(size);
         // First, check the memory for the image
-        final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(key);
+        final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(ImageCache.getVariantKey(key,
+                sizeClass));
         if (lruBitmap != null && imageView != null) {
             // Bitmap found in memory cache
             imageView.setImageBitmap(lruBitmap);
         } else if (executePotentialWork(key, imageView) && imageView != null && !isScrolling()) {
             // Otherwise run the worker task
-            final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(imageView, imageType);
+            final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(imageView, imageType,
+                    sizeClass, key, artistName, albumName, albumId);
             final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources, mDefault,
                     bitmapWorkerTask);
             imageView.setImageDrawable(asyncDrawable);
@@ -425,23 +683,39 @@ public abstract class ImageWorker {
             if (isScrolling()) {
                 cancelWork(imageView);
             } else {
-                TopMusicUtils.execute(false, bitmapWorkerTask, key, artistName, albumName, albumId);
+                bitmapWorkerTask.start();
             }
         }
     }
 
     protected void loadImage(final String url, final ImageView imageView) {
+        loadImage(url, imageView, getRequestedSize(imageView));
+    }
+
+    /**
+     * Called to download an image, decoded for a size.
+     * 
+     * @param url The URL of the image, also its unique identifier.
+     * @param imageView The {@link ImageView} used to set the cached
+     *            {@link Bitmap}.
+     * @param size The width and height in pixels to decode the image for, 0
+     *            for the full image.
+     */
+    protected void loadImage(final String url, final ImageView imageView, final int size) {
         if (url == null || mImageCache == null || imageView == null) {
             return;
         }
+        final int sizeClass = ImageCache.getSizeClass(size);
         // First, check the memory for the image
-        final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(url);
+        final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(ImageCache.getVariantKey(url,
+                sizeClass));
         if (lruBitmap != null && imageView != null) {
             // Bitmap found in memory cache
             imageView.setImageBitmap(lruBitmap);
         } else if (executePotentialWork(url, imageView) && imageView != null && !isScrolling()) {
             // Otherwise run the worker task
-            final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(imageView, null);
+            final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(imageView, null,
+                    sizeClass, url);
             final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources, mDefault,
                     bitmapWorkerTask);
             imageView.setImageDrawable(asyncDrawable);
@@ -449,8 +723,110 @@ public abstract class ImageWorker {
             if (isScrolling()) {
                 cancelWork(imageView);
             } else {
-                TopMusicUtils.execute(false, bitmapWorkerTask, url);
+                bitmapWorkerTask.start();
+            }
+        }
+    }
+
+    /**
+     * @param imageView The {@link ImageView} an image is loaded into
+     * @return The larger side of the view in pixels, from its layout params
+     *         or, failing that, its last layout. 0 if the view has no size
+     *         yet or wraps its content, to load the full image.
+     */
+    public static int getRequestedSize(final ImageView imageView) {
+        int width = imageView.getWidth();
+        int height = imageView.getHeight();
+        final ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if (params != null) {
+            if (params.width > 0) {
+                width = params.width;
+            } else if (params.width == ViewGroup.LayoutParams.WRAP_CONTENT) {
+                return 0;
             }
+            if (params.height > 0) {
+                height = params.height;
+            } else if (params.height == ViewGroup.LayoutParams.WRAP_CONTENT) {
+                return 0;
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        return Math.max(width, height);
+    }
+
+    /**
+     * Loads the artist or album art into the caches, without a view to show
+     * it in. Prefetches run after all work for bound views, in the order they
+     * were asked for, and are dropped while the user scrolls or once too many
+     * of them are pending.
+     * 
+     * @param key The unique identifier for the image.
+     * @param artistName The artist name for the Last.fm API.
+     * @param albumName The album name for the Last.fm API.
+     * @param albumId The album art index, to check for missing artwork.
+     * @param imageType The type of image URL to fetch for.
+     * @param size The width and height in pixels to decode the image for, 0
+     *            for the full image.
+     */
+    protected void prefetchImage(final String key, final String artistName,
+            final String albumName, final String albumId, final ImageType imageType,
+            final int size) {
+        prefetch(imageType, size, key, artistName, albumName, albumId);
+    }
+
+    /**
+     * Downloads an image into the caches, without a view to show it in.
+     * 
+     * @param url The URL of the image, also its unique identifier.
+     * @param size The width and height in pixels to decode the image for, 0
+     *            for the full image.
+     * @see #prefetchImage(String, String, String, String, ImageType, int)
+     */
+    protected void prefetchImage(final String url, final int size) {
+        prefetch(null, size, url);
+    }
+
+    private void prefetch(final ImageType imageType, final int size, final String... params) {
+        final String key = params[0];
+        if (key == null || mImageCache == null || isScrolling()) {
+            return;
+        }
+        final int sizeClass = ImageCache.getSizeClass(size);
+        if (mImageCache.isInMemCache(ImageCache.getVariantKey(key, sizeClass))) {
+            return;
+        }
+        final BitmapWorkerTask bitmapWorkerTask;
+        synchronized (mPrefetches) {
+            if (mPrefetches.size() >= PREFETCH_BUDGET || mPrefetches.containsKey(key)) {
+                return;
+            }
+            bitmapWorkerTask = new BitmapWorkerTask(null, imageType, sizeClass, params);
+            mPrefetches.put(key, bitmapWorkerTask);
+        }
+        bitmapWorkerTask.start();
+    }
+
+    private void removePrefetch(final BitmapWorkerTask bitmapWorkerTask) {
+        synchronized (mPrefetches) {
+            if (mPrefetches.get(bitmapWorkerTask.mKey) == bitmapWorkerTask) {
+                mPrefetches.remove(bitmapWorkerTask.mKey);
+            }
+        }
+    }
+
+    /**
+     * Cancels all pending prefetches, e.g. when the user scrolls the other way
+     */
+    public void cancelPrefetches() {
+        final List<BitmapWorkerTask> prefetches;
+        synchronized (mPrefetches) {
+            prefetches = new ArrayList<BitmapWorkerTask>(mPrefetches.values());
+            mPrefetches.clear();
+        }
+        for (final BitmapWorkerTask bitmapWorkerTask : prefetches) {
+            bitmapWorkerTask.cancel();
         }
     }
 
@@ -465,6 +841,26 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(String key);
 
+    /**
+     * Downloads an image into the disk cache, which the image is then decoded
+     * from. Only called when there is a disk cache. The default
+     * implementation fetches it with {@link #processBitmap(String)} and
+     * compresses it into the cache; subclasses can override this to store the
+     * image as it is downloaded instead.
+     * 
+     * @param url The URL of the image to download.
+     * @param key The key to store the image under.
+     * @return True if the image is now in the disk cache.
+     */
+    protected boolean downloadBitmapToCache(final String url, final String key) {
+        final Bitmap bitmap = processBitmap(url);
+        if (bitmap == null) {
+            return false;
+        }
+        mImageCache.addBitmapToDiskCache(key, bitmap);
+        return true;
+    }
+
     /**
      * Subclasses should override this to define any processing or work that
      * must happen to produce the URL needed to fetch the final {@link Bitmap}.
@@ -0,0 +1,231 @@
+package the.topmusic.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A disk cache split into independent {@link DiskLruCache} segments. Each key
+ * belongs to one segment, picked by its hash; every segment lives in its own
+ * subdirectory with its own journal, lock and an equal share of the maximum
+ * size. Lookups and edits of keys in different segments therefore never wait
+ * for each other, where a single {@link DiskLruCache} serializes all of them
+ * behind one monitor and its journal appends.
+ * <p/>
+ * Within a segment nothing changes: readers still take its monitor one at a
+ * time, and every {@link #get(String)} is a write, as it reorders the
+ * segment's LRU map and appends a READ record to its journal. Concurrent
+ * reads are only as parallel as the keys are spread over the segments.
+ * <p/>
+ * Eviction is least-recently-used per segment. Keys should be evenly
+ * distributed hashes, like the ones produced by
+ * {@link the.topmusic.utils.DiskCacheUtils#hashKeyForDisk(String)}.
+ */
+public final class ShardedDiskLruCache implements DiskCache {
+    private final File directory;
+    private final long maxSize;
+    private final DiskLruCache[] segments;
+
+    private ShardedDiskLruCache(final File directory, final long maxSize, final DiskLruCache[] segments) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. Anything in {@code directory} that is not a segment of a cache
+     * with {@code segmentCount} segments, e.g. an unsharded cache or one with
+     * a different number of segments, is deleted.
+     *
+     * @param directory    a writable directory
+     * @param appVersion   the version of the entries' layout, see
+     *                     {@link DiskLruCache#open(File, int, int, long, boolean)}
+     * @param valueCount   the number of values per cache entry. Must be positive.
+     * @param maxSize      the maximum number of bytes all segments together
+     *                     should use to store
+     * @param readOnly     true to open the segments read only
+     * @param segmentCount the number of segments. Must be positive.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(final File directory, final int appVersion,
+                                           final int valueCount, final long maxSize,
+                                           final boolean readOnly, final int segmentCount)
+            throws IOException {
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount <= 0");
+        }
+        if (maxSize < segmentCount) {
+            throw new IllegalArgumentException("maxSize < segmentCount");
+        }
+
+        if (!readOnly) {
+            removeForeignFiles(directory, segmentCount);
+        }
+
+        final DiskLruCache[] segments = new DiskLruCache[segmentCount];
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = DiskLruCache.open(segmentDirectory(directory, segmentCount, i),
+                        appVersion, valueCount, maxSize / segmentCount, readOnly);
+            }
+        } catch (final IOException e) {
+            for (final DiskLruCache segment : segments) {
+                DiskLruCache.closeQuietly(segment);
+            }
+            throw e;
+        }
+        return new ShardedDiskLruCache(directory, maxSize, segments);
+    }
+
+    private static File segmentDirectory(final File directory, final int segmentCount, final int index) {
+        return new File(directory, segmentCount + "-" + index);
+    }
+
+    private static void removeForeignFiles(final File directory, final int segmentCount) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            boolean isSegment = false;
+            for (int i = 0; i < segmentCount && !isSegment; i++) {
+                isSegment = file.equals(segmentDirectory(directory, segmentCount, i));
+            }
+            if (isSegment) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                DiskLruCache.deleteContents(file);
+            }
+            if (!file.delete()) {
+                throw new IOException("failed to delete file: " + file);
+            }
+        }
+    }
+
+    private DiskLruCache segmentFor(final String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DiskLruCache.Snapshot get(final String key) throws IOException {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DiskLruCache.Editor edit(final String key) throws IOException {
+        return segmentFor(key).edit(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(final String key) throws IOException {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        for (final DiskLruCache segment : segments) {
+            segment.flush();
+        }
+    }
+
+    /**
+     * Switches group commit of the journal on or off for every segment.
+     *
+     * @see DiskLruCache#setGroupCommit(long, int)
+     */
+    public void setGroupCommit(final long delayMillis, final int maxRecords) throws IOException {
+        for (final DiskLruCache segment : segments) {
+            segment.setGroupCommit(delayMillis, maxRecords);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed() {
+        for (final DiskLruCache segment : segments) {
+            if (!segment.isClosed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes every segment. Stored values will remain on the filesystem.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (final DiskLruCache segment : segments) {
+            try {
+                segment.close();
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(directory);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() {
+        long size = 0;
+        for (final DiskLruCache segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of segments
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+}
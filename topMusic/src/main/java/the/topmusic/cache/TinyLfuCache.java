@@ -0,0 +1,502 @@
+package the.topmusic.cache;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * A size bounded cache with the same API as {@link LruCache}, but with the
+ * W-TinyLFU eviction policy instead of plain LRU, so a burst of entries that
+ * are used only once cannot push out the entries that are used all the time.
+ * <p/>
+ * New entries go into a small LRU window. Entries falling out of the window
+ * compete for a place in the main area with its least valuable entry; the
+ * one requested less often according to a frequency sketch of all recent
+ * requests, present or not, is evicted. The main area is a segmented LRU: an
+ * entry hit again moves from the probation to the protected segment, and
+ * entries leaving the protected segment get another chance in probation.
+ * <p/>
+ * Like {@link LruCache}, {@link #sizeOf} defines the size of an entry and
+ * must not change while the entry is in the cache.
+ */
+public class TinyLfuCache<K, V> {
+    /**
+     * Default share of the maximum size given to the window, in percent
+     */
+    private static final int WINDOW_PERCENT = 1;
+    /**
+     * Share of the main area given to the protected segment, in percent
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final HashMap<K, Node<K, V>> map = new HashMap<K, Node<K, V>>();
+    private final Region<K, V> window = new Region<K, V>();
+    private final Region<K, V> probation = new Region<K, V>();
+    private final Region<K, V> protectedRegion = new Region<K, V>();
+    private final FrequencySketch sketch;
+
+    private final int maxSize;
+    private final int maxWindowSize;
+    private final int maxProtectedSize;
+
+    private int size;
+
+    private int putCount;
+
+    private int hitCount;
+
+    private int missCount;
+
+    private int sizeEvictionCount;
+
+    private int rejectionCount;
+
+    private int trimCount;
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *                the maximum number of entries in the cache. For all other
+     *                caches, this is the maximum sum of the sizes of the
+     *                entries in this cache.
+     */
+    public TinyLfuCache(final int maxSize) {
+        this(maxSize, WINDOW_PERCENT);
+    }
+
+    /**
+     * @param maxSize       see {@link #TinyLfuCache(int)}
+     * @param windowPercent the share of {@code maxSize} given to the window,
+     *                      where new entries are kept by recency alone
+     */
+    public TinyLfuCache(final int maxSize, final int windowPercent) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (windowPercent < 0 || windowPercent >= 100) {
+            throw new IllegalArgumentException("windowPercent < 0 || windowPercent >= 100");
+        }
+        this.maxSize = maxSize;
+        sketch = new FrequencySketch(maxSize);
+        maxWindowSize = Math.max(1, (int) ((long) maxSize * windowPercent / 100));
+        maxProtectedSize = (int) ((long) (maxSize - maxWindowSize) * PROTECTED_PERCENT / 100);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, or null.
+     * Either way the request counts towards the frequency of {@code key}.
+     */
+    public synchronized final V get(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        sketch.increment(key);
+        final Node<K, V> node = map.get(key);
+        if (node == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        onHit(node);
+        return node.value;
+    }
+
+    /**
+     * @return True if the cache holds {@code key}. Unlike {@link #get}, this
+     * is not counted as a request.
+     */
+    public synchronized final boolean containsKey(final K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. A new entry starts in the window,
+     * it may be evicted by the admission policy once it leaves the window.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public synchronized final V put(final K key, final V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        putCount++;
+        final int valueSize = safeSizeOf(key, value);
+        final Node<K, V> previous = map.get(key);
+        if (previous != null) {
+            final V previousValue = previous.value;
+            size += valueSize - previous.size;
+            regionOf(previous).size += valueSize - previous.size;
+            previous.value = value;
+            previous.size = valueSize;
+            onHit(previous);
+            evict();
+            return previousValue;
+        }
+
+        sketch.increment(key);
+        if (valueSize > maxSize) {
+            rejectionCount++;
+            return null;
+        }
+        final Node<K, V> node = new Node<K, V>(key, value, valueSize);
+        map.put(key, node);
+        size += valueSize;
+        window.addLast(node);
+        evict();
+        return null;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public synchronized final V remove(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Node<K, V> node = map.remove(key);
+        if (node == null) {
+            return null;
+        }
+        regionOf(node).remove(node);
+        size -= node.size;
+        return node.value;
+    }
+
+    /**
+     * Evicts entries until the cache is no bigger than {@code maxSize}: first
+     * those on probation, then the window, then the protected ones, oldest
+     * first within each.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *                to evict even 0-sized elements.
+     */
+    public synchronized void trimToSize(final int maxSize) {
+        while (size > maxSize && !map.isEmpty()) {
+            Node<K, V> node = probation.first();
+            if (node == null) {
+                node = window.first();
+            }
+            if (node == null) {
+                node = protectedRegion.first();
+            }
+            discard(node);
+            trimCount++;
+        }
+    }
+
+    /**
+     * Clear the cache.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units. The default implementation returns 1 so that size is
+     * the number of entries and max size is the maximum number of entries.
+     */
+    protected int sizeOf(final K key, final V value) {
+        return 1;
+    }
+
+    private int safeSizeOf(final K key, final V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private Region<K, V> regionOf(final Node<K, V> node) {
+        if (node.region == Node.WINDOW) {
+            return window;
+        }
+        return node.region == Node.PROBATION ? probation : protectedRegion;
+    }
+
+    private void onHit(final Node<K, V> node) {
+        if (node.region == Node.PROBATION) {
+            probation.remove(node);
+            node.region = Node.PROTECTED;
+            protectedRegion.addLast(node);
+            while (protectedRegion.size > maxProtectedSize && protectedRegion.first() != node) {
+                final Node<K, V> demoted = protectedRegion.first();
+                protectedRegion.remove(demoted);
+                demoted.region = Node.PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            final Region<K, V> region = regionOf(node);
+            region.remove(node);
+            region.addLast(node);
+        }
+    }
+
+    private void evict() {
+        while (window.size > maxWindowSize) {
+            final Node<K, V> candidate = window.first();
+            window.remove(candidate);
+            candidate.region = Node.PROBATION;
+            probation.addLast(candidate);
+            admit(candidate);
+        }
+        // Left over when the window is one large entry or a value grew in place
+        while (size > maxSize) {
+            Node<K, V> node = window.first();
+            if (node == null) {
+                node = probation.first();
+            }
+            if (node == null) {
+                node = protectedRegion.first();
+            }
+            discard(node);
+            sizeEvictionCount++;
+        }
+    }
+
+    /**
+     * Makes room for {@code candidate}, just moved from the window to the end
+     * of probation, by evicting entries of the main area that are requested
+     * less often, or evicts the candidate itself.
+     */
+    private void admit(final Node<K, V> candidate) {
+        final int candidateFrequency = sketch.frequency(candidate.key);
+        while (size > maxSize) {
+            Node<K, V> victim = probation.first();
+            if (victim == candidate) {
+                victim = protectedRegion.first();
+            }
+            if (victim == null) {
+                return;
+            }
+            if (candidateFrequency > sketch.frequency(victim.key)) {
+                discard(victim);
+                sizeEvictionCount++;
+            } else {
+                discard(candidate);
+                rejectionCount++;
+                return;
+            }
+        }
+    }
+
+    private void discard(final Node<K, V> node) {
+        regionOf(node).remove(node);
+        map.remove(node.key);
+        size -= node.size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public synchronized final int size() {
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public synchronized final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value.
+     */
+    public synchronized final int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public synchronized final int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public synchronized final int putCount() {
+        return putCount;
+    }
+
+    /**
+     * Returns the number of entries evicted to make room for an entry that
+     * was requested more often.
+     */
+    public synchronized final int sizeEvictionCount() {
+        return sizeEvictionCount;
+    }
+
+    /**
+     * Returns the number of new entries evicted because they were requested
+     * less often than the entries they would have replaced, or did not fit.
+     */
+    public synchronized final int rejectionCount() {
+        return rejectionCount;
+    }
+
+    /**
+     * Returns the number of entries evicted by {@link #trimToSize} and
+     * {@link #evictAll}.
+     */
+    public synchronized final int trimCount() {
+        return trimCount;
+    }
+
+    /**
+     * Returns the number of values that have been evicted, for any reason.
+     */
+    public synchronized final int evictionCount() {
+        return sizeEvictionCount + rejectionCount + trimCount;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        final int accesses = hitCount + missCount;
+        final int hitPercent = accesses != 0 ? 100 * hitCount / accesses : 0;
+        return String.format(Locale.US,
+                "TinyLfuCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,sizeEvictions=%d,rejections=%d,trims=%d]",
+                maxSize, hitCount, missCount, hitPercent, sizeEvictionCount, rejectionCount, trimCount);
+    }
+
+    private static final class Node<K, V> {
+        private static final int WINDOW = 0;
+        private static final int PROBATION = 1;
+        private static final int PROTECTED = 2;
+
+        private final K key;
+        private V value;
+        private int size;
+        private int region = WINDOW;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+
+        private Node(final K key, final V value, final int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An access ordered list of nodes, oldest first, with their total size
+     */
+    private static final class Region<K, V> {
+        private final Node<K, V> head = new Node<K, V>(null, null, 0);
+        private int size;
+
+        private Region() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        private Node<K, V> first() {
+            return head.next == head ? null : head.next;
+        }
+
+        private void addLast(final Node<K, V> node) {
+            node.previous = head.previous;
+            node.next = head;
+            head.previous.next = node;
+            head.previous = node;
+            size += node.size;
+        }
+
+        private void remove(final Node<K, V> node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+            size -= node.size;
+        }
+    }
+
+    /**
+     * A count-min sketch of byte counters, saturating at 15, estimating how
+     * often each key was requested. All counters are halved once the number
+     * of increments reaches ten times the width, so old popularity fades out.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int MIN_WIDTH = 64;
+        private static final int[] SEEDS = {
+                0x97cb3127, 0xc3a5c85d, 0x9ae16a3b, 0x2d358dcd
+        };
+
+        private static final int MAX_WIDTH = 1 << 24;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        /**
+         * @param maxSize the maximum size of the cache; the sketch gets one
+         *                counter per row for each possible entry, rounded up
+         *                to a power of two, so it never has to grow
+         */
+        private FrequencySketch(final int maxSize) {
+            int width = MIN_WIDTH;
+            while (width < maxSize && width < MAX_WIDTH) {
+                width <<= 1;
+            }
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int frequency(final Object key) {
+            final int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private void increment(final Object key) {
+            final int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                final int index = indexOf(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (final byte[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(final int hash, final int row) {
+            int index = hash * SEEDS[row];
+            index ^= index >>> 16;
+            return index & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xed5ad4bb;
+            hash ^= hash >>> 11;
+            return hash;
+        }
+    }
+}
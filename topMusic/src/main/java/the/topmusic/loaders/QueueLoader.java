@@ -14,7 +14,6 @@ package the.topmusic.loaders;
 import android.content.Context;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import the.topmusic.model.Song;
@@ -28,6 +27,11 @@ import the.topmusic.utils.MusicUtils;
  */
 public class QueueLoader extends WrappedAsyncTaskLoader<List<Song>> {
 
+    /**
+     * Number of tracks asked for at once
+     */
+    private static final int PAGE_SIZE = 100;
+
     /**
      * The result
      */
@@ -47,10 +51,23 @@ public class QueueLoader extends WrappedAsyncTaskLoader<List<Song>> {
      */
     @Override
     public List<Song> loadInBackground() {
-        // Create the Cursor
-        Song[] songs = MusicUtils.getQueue();
-        // Gather the data
-        Collections.addAll(mSongList, songs);
+        // Gather the data a page at a time, the service reads back a queue it
+        // restored only as it is asked for it
+        final int size = MusicUtils.getQueueSize();
+        int position = 0;
+        while (position < size) {
+            final Song[] songs = MusicUtils.getQueue(position, PAGE_SIZE);
+            if (songs.length == 0) {
+                break;
+            }
+            position += songs.length;
+            for (final Song song : songs) {
+                // The service drops a track it could not read back
+                if (song != null) {
+                    mSongList.add(song);
+                }
+            }
+        }
         return mSongList;
     }
 }
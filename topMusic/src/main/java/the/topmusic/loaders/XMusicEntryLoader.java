@@ -49,13 +49,20 @@ public class XMusicEntryLoader  extends WrappedAsyncTaskLoader<List<XMusicEntry>
         mParent = parent;
     }
 
+    /**
+     * @return The URL the entries of {@code parent} are loaded from
+     */
+    public static String urlForEntry(XMusicEntry parent) {
+        return parent.mUrl + "&method=json";
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public List<XMusicEntry> loadInBackground() {
         // Download from parent's URL
-        String urlString = mParent.mUrl+"&method=json";
+        String urlString = urlForEntry(mParent);
         final JSONArray jsonOutput;
         try {
             final String contentOfURL = URLUtils.getUrlAsString(urlString, 60 * 1000, true);
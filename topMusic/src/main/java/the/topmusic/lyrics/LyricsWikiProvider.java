@@ -57,7 +57,7 @@ public class LyricsWikiProvider implements LyricsProvider {
             }
 
             // And now get the full lyrics
-            String html = URLUtils.getUrlAsString(songURL);
+            String html = URLUtils.getUrlAsString(songURL, DEFAULT_HTTP_TIME, true);
             if (html == null) {
                 return null;
             }
@@ -130,7 +130,7 @@ public class LyricsWikiProvider implements LyricsProvider {
         String url = String.format(LYRICS_URL, encode(artist, "UTF-8"), encode(song, "UTF-8"));
         String contentOfURL = null;
         try {
-            contentOfURL = URLUtils.getUrlAsString(url, DEFAULT_HTTP_TIME);
+            contentOfURL = URLUtils.getUrlAsString(url, DEFAULT_HTTP_TIME, true);
         } catch (Exception e) {
             e.printStackTrace();
         } catch (DiskCacheUtils.NoCacheAvailableException e) {
@@ -156,7 +156,7 @@ public class LyricsWikiProvider implements LyricsProvider {
         String url = String.format(ARTIST_URL, encode(artist, "UTF-8"));
         String contentOfURL = null;
         try {
-            contentOfURL = URLUtils.getUrlAsString(url, DEFAULT_HTTP_TIME);
+            contentOfURL = URLUtils.getUrlAsString(url, DEFAULT_HTTP_TIME, true);
         } catch (Exception e) {
             e.printStackTrace();
         } catch (DiskCacheUtils.NoCacheAvailableException e) {
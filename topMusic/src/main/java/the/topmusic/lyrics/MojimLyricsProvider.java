@@ -34,7 +34,7 @@ public class MojimLyricsProvider implements LyricsProvider {
             }
 
             // And now get the full lyrics
-            String html = URLUtils.getUrlAsString(songURL);
+            String html = URLUtils.getUrlAsString(songURL, 60 * 1000, true);
 
             ret = stripLyrics(html);
 
@@ -74,7 +74,7 @@ public class MojimLyricsProvider implements LyricsProvider {
         String searchURL = BASE_URL + "/" + URLEncoder.encode(song, "UTF-8") + ".html?g3";
         String html = null;
         try {
-            html = URLUtils.getUrlAsString(searchURL);
+            html = URLUtils.getUrlAsString(searchURL, 60 * 1000, true);
         } catch (Exception e) {
             e.printStackTrace();
         } catch (DiskCacheUtils.NoCacheAvailableException e) {
@@ -0,0 +1,533 @@
+package the.topmusic.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import the.topmusic.model.Song;
+import the.topmusic.utils.ParcelableUtils;
+
+/**
+ * Keeps the play queue of {@link the.topmusic.MusicPlaybackService} on disk,
+ * one row per track, so inserting, moving or removing tracks only writes the
+ * rows involved instead of the whole queue.
+ * <p/>
+ * Rows are ordered by a sort key rather than by their index. The keys are
+ * spread {@link #KEY_SPACING} apart, so a track inserted or moved between two
+ * others just takes a key in between; only when two neighbours run out of
+ * keys in between are all rows given new keys. The keys of the queue are
+ * mirrored in memory, so every change maps its indices to keys right away,
+ * while the writes themselves are done in order on a background thread.
+ * Reading the queue back works the same way: the keys are read up front,
+ * the songs a range at a time.
+ * <p/>
+ * The order the queue is shuffled in is kept next to it, as a single row.
+ */
+public class QueueStore extends SQLiteOpenHelper {
+    private static final String TAG = QueueStore.class.getSimpleName();
+
+    /* Version constant to increment when the database should be rebuilt */
+    private static final int VERSION = 1;
+
+    /* Name of database file */
+    public static final String DATABASENAME = "queue.db";
+
+    /**
+     * Distance between the keys of neighbouring rows after they were numbered
+     */
+    private static final long KEY_SPACING = 1L << 20;
+
+    private static QueueStore sInstance = null;
+
+    /**
+     * Writes the changes in the order they were made
+     */
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    /**
+     * The sort keys of the queue, in queue order
+     */
+    private long[] mKeys = new long[0];
+
+    private int mSize;
+
+    private boolean mEnabled = true;
+
+    /**
+     * Guards the keys. Never held while waiting for the writer.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Constructor of <code>QueueStore</code>
+     *
+     * @param context The {@link Context} to use
+     */
+    public QueueStore(final Context context) {
+        super(context, DATABASENAME, null, VERSION);
+    }
+
+    /**
+     * @param context The {@link Context} to use
+     * @return A new instance of this class.
+     */
+    public static synchronized QueueStore getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new QueueStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreate(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + QueueColumns.NAME + " (" + QueueColumns.KEY
+                + " INTEGER PRIMARY KEY," + QueueColumns.SONG + " BLOB NOT NULL);");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + ShuffleColumns.NAME + " ("
+                + ShuffleColumns.ORDER + " BLOB NOT NULL);");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + QueueColumns.NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + ShuffleColumns.NAME);
+        onCreate(db);
+    }
+
+    /**
+     * Reads back the sort keys of the queue, but none of its songs, which are
+     * read with {@link #load(int, int)} when needed. Waits for the pending
+     * writes first. The queue must not be changed until this returns.
+     *
+     * @return The length of the queue
+     */
+    public int loadKeys() {
+        final long[] keys = read(new Callable<long[]>() {
+            @Override
+            public long[] call() {
+                final Cursor cursor = getReadableDatabase().query(QueueColumns.NAME,
+                        new String[] {
+                            QueueColumns.KEY
+                        }, null, null, null, null, QueueColumns.KEY);
+                if (cursor == null) {
+                    return null;
+                }
+                try {
+                    final long[] keys = new long[cursor.getCount()];
+                    for (int i = 0; cursor.moveToNext(); i++) {
+                        keys[i] = cursor.getLong(0);
+                    }
+                    return keys;
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+        synchronized (mLock) {
+            mSize = keys != null ? keys.length : 0;
+            mKeys = new long[Math.max(mSize, 16)];
+            if (keys != null) {
+                System.arraycopy(keys, 0, mKeys, 0, mSize);
+            }
+            return mSize;
+        }
+    }
+
+    /**
+     * Reads back part of the queue. Waits for the pending writes first.
+     *
+     * @param first The position of the first song to read
+     * @param count The number of songs to read
+     * @return The songs, null where one could not be read
+     */
+    public Song[] load(final int first, final int count) {
+        final long[] keys;
+        synchronized (mLock) {
+            final int length = Math.max(0, Math.min(count, mSize - first));
+            if (first < 0 || length == 0) {
+                return new Song[0];
+            }
+            keys = new long[length];
+            System.arraycopy(mKeys, first, keys, 0, length);
+        }
+        final Song[] songs = read(new Callable<Song[]>() {
+            @Override
+            public Song[] call() {
+                final Song[] songs = new Song[keys.length];
+                final Cursor cursor = getReadableDatabase().query(QueueColumns.NAME,
+                        new String[] {
+                            QueueColumns.KEY, QueueColumns.SONG
+                        }, QueueColumns.KEY + " BETWEEN ? AND ?", new String[] {
+                            String.valueOf(keys[0]), String.valueOf(keys[keys.length - 1])
+                        }, null, null, QueueColumns.KEY);
+                if (cursor == null) {
+                    return songs;
+                }
+                try {
+                    // Both are in key order, a missing row leaves its song null
+                    int position = 0;
+                    while (cursor.moveToNext()) {
+                        final long key = cursor.getLong(0);
+                        while (position < keys.length && keys[position] < key) {
+                            position++;
+                        }
+                        if (position < keys.length && keys[position] == key) {
+                            songs[position] = ParcelableUtils.unmarshall(cursor.getBlob(1),
+                                    Song.CREATOR);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return songs;
+            }
+        });
+        return songs != null ? songs : new Song[keys.length];
+    }
+
+    /**
+     * Reads back the order the queue was shuffled in. It may be older than
+     * the queue, so it should be checked against it. Waits for the pending
+     * writes first.
+     *
+     * @return The positions of the queue in the order they are played, or
+     * null if none was saved
+     */
+    public int[] loadShuffleOrder() {
+        return read(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                final Cursor cursor = getReadableDatabase().query(ShuffleColumns.NAME,
+                        new String[] {
+                            ShuffleColumns.ORDER
+                        }, null, null, null, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                try {
+                    if (!cursor.moveToFirst()) {
+                        return null;
+                    }
+                    final byte[] data = cursor.getBlob(0);
+                    final int[] order = new int[data.length / 4];
+                    ByteBuffer.wrap(data).asIntBuffer().get(order);
+                    return order;
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the order the queue is shuffled in
+     *
+     * @param order The positions of the queue in the order they are played
+     * @param count The number of positions
+     */
+    public void saveShuffleOrder(final int[] order, final int count) {
+        synchronized (mLock) {
+            if (!mEnabled) {
+                return;
+            }
+            final ByteBuffer data = ByteBuffer.allocate(count * 4);
+            data.asIntBuffer().put(order, 0, count);
+            write(new Runnable() {
+                @Override
+                public void run() {
+                    final SQLiteDatabase database = getWritableDatabase();
+                    final ContentValues values = new ContentValues(1);
+                    values.put(ShuffleColumns.ORDER, data.array());
+                    database.beginTransaction();
+                    try {
+                        database.delete(ShuffleColumns.NAME, null, null);
+                        database.insert(ShuffleColumns.NAME, null, values);
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Changes made while disabled are dropped, and this store no longer
+     * matches the queue until it is loaded again, e.g. while the storage the
+     * queue refers to is unmounted.
+     */
+    public void setEnabled(final boolean enabled) {
+        synchronized (mLock) {
+            mEnabled = enabled;
+        }
+    }
+
+    /**
+     * Empties the queue
+     */
+    public void clear() {
+        synchronized (mLock) {
+            if (!mEnabled) {
+                return;
+            }
+            mSize = 0;
+            write(new Runnable() {
+                @Override
+                public void run() {
+                    getWritableDatabase().delete(QueueColumns.NAME, null, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the whole queue
+     */
+    public void replace(final Song[] songs, final int count) {
+        synchronized (mLock) {
+            clear();
+            insert(0, songs, 0, count);
+        }
+    }
+
+    /**
+     * Inserts {@code count} songs of {@code songs} at {@code position}. A
+     * null song takes its place in the queue but is not written, and is read
+     * back as null.
+     */
+    public void insert(final int position, final Song[] songs, final int offset,
+                       final int count) {
+        synchronized (mLock) {
+            if (!mEnabled || count <= 0 || position < 0 || position > mSize) {
+                return;
+            }
+            if (!hasRoom(position, count)) {
+                renumber(position, count);
+            }
+            final long lower = position > 0 ? mKeys[position - 1] : 0;
+            final long upper = position < mSize ? mKeys[position]
+                    : lower + (count + 1) * KEY_SPACING;
+            final long step = (upper - lower) / (count + 1);
+
+            ensureCapacity(mSize + count);
+            System.arraycopy(mKeys, position, mKeys, position + count, mSize - position);
+            final long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = lower + step * (i + 1);
+                mKeys[position + i] = keys[i];
+            }
+            mSize += count;
+
+            final Song[] inserted = new Song[count];
+            System.arraycopy(songs, offset, inserted, 0, count);
+            write(new Runnable() {
+                @Override
+                public void run() {
+                    final SQLiteDatabase database = getWritableDatabase();
+                    final ContentValues values = new ContentValues(2);
+                    database.beginTransaction();
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            if (inserted[i] == null) {
+                                continue;
+                            }
+                            values.put(QueueColumns.KEY, keys[i]);
+                            values.put(QueueColumns.SONG, ParcelableUtils.marshall(inserted[i]));
+                            database.insert(QueueColumns.NAME, null, values);
+                        }
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the songs from {@code first} to {@code last}, inclusive
+     */
+    public void remove(final int first, final int last) {
+        synchronized (mLock) {
+            if (!mEnabled || first < 0 || last >= mSize || last < first) {
+                return;
+            }
+            final String[] range = new String[] {
+                    String.valueOf(mKeys[first]), String.valueOf(mKeys[last])
+            };
+            System.arraycopy(mKeys, last + 1, mKeys, first, mSize - last - 1);
+            mSize -= last - first + 1;
+            write(new Runnable() {
+                @Override
+                public void run() {
+                    getWritableDatabase().delete(QueueColumns.NAME,
+                            QueueColumns.KEY + " BETWEEN ? AND ?", range);
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves the song at {@code from} to {@code to}
+     */
+    public void move(final int from, final int to) {
+        synchronized (mLock) {
+            if (!mEnabled || from < 0 || from >= mSize || to < 0 || to >= mSize || from == to) {
+                return;
+            }
+            final long oldKey = mKeys[from];
+            if (from < to) {
+                System.arraycopy(mKeys, from + 1, mKeys, from, to - from);
+            } else {
+                System.arraycopy(mKeys, to, mKeys, to + 1, from - to);
+            }
+            mKeys[to] = oldKey;
+
+            final long lower = to > 0 ? mKeys[to - 1] : 0;
+            final long upper = to < mSize - 1 ? mKeys[to + 1] : lower + 2 * KEY_SPACING;
+            if (upper - lower < 2) {
+                // The old key still identifies the row, numbering takes care of it
+                renumber(-1, 0);
+                return;
+            }
+            final long newKey = lower + (upper - lower) / 2;
+            mKeys[to] = newKey;
+            write(new Runnable() {
+                @Override
+                public void run() {
+                    final ContentValues values = new ContentValues(1);
+                    values.put(QueueColumns.KEY, newKey);
+                    getWritableDatabase().update(QueueColumns.NAME, values,
+                            QueueColumns.KEY + " = ?", new String[] {
+                                String.valueOf(oldKey)
+                            });
+                }
+            });
+        }
+    }
+
+    /**
+     * @return True if {@code count} keys fit between the neighbours of
+     * {@code position}
+     */
+    private boolean hasRoom(final int position, final int count) {
+        if (position == mSize) {
+            return true;
+        }
+        final long lower = position > 0 ? mKeys[position - 1] : 0;
+        return mKeys[position] - lower > count;
+    }
+
+    /**
+     * Spreads the keys of all rows {@link #KEY_SPACING} apart again, leaving
+     * room for {@code count} more before {@code position}. The rows are
+     * renamed to negative keys first, so no new key can clash with an old one.
+     */
+    private void renumber(final int position, final int count) {
+        final long[] oldKeys = new long[mSize];
+        System.arraycopy(mKeys, 0, oldKeys, 0, mSize);
+        final long[] newKeys = new long[mSize];
+        for (int i = 0; i < mSize; i++) {
+            newKeys[i] = (i + 1 + (position >= 0 && i >= position ? count : 0)) * KEY_SPACING;
+            mKeys[i] = newKeys[i];
+        }
+        write(new Runnable() {
+            @Override
+            public void run() {
+                final SQLiteDatabase database = getWritableDatabase();
+                database.beginTransaction();
+                try {
+                    for (int i = 0; i < oldKeys.length; i++) {
+                        rename(database, oldKeys[i], -1 - i);
+                    }
+                    for (int i = 0; i < newKeys.length; i++) {
+                        rename(database, -1 - i, newKeys[i]);
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        });
+    }
+
+    private static void rename(final SQLiteDatabase database, final long oldKey, final long newKey) {
+        database.execSQL("UPDATE " + QueueColumns.NAME + " SET " + QueueColumns.KEY + " = ? WHERE "
+                + QueueColumns.KEY + " = ?", new Object[] {
+                newKey, oldKey
+        });
+    }
+
+    private void ensureCapacity(final int size) {
+        if (size > mKeys.length) {
+            final long[] keys = new long[Math.max(size, mKeys.length * 2)];
+            System.arraycopy(mKeys, 0, keys, 0, mSize);
+            mKeys = keys;
+        }
+    }
+
+    private void write(final Runnable write) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch (final RuntimeException e) {
+                    // The next load reads whatever made it to disk
+                    Log.e(TAG, "write - " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads from the database on the writer, so the read follows the pending
+     * writes. Neither this store nor {@link #mLock} is held while waiting,
+     * as the writes need the one and may be queued by holders of the other.
+     */
+    private <T> T read(final Callable<T> read) {
+        try {
+            return mWriter.submit(read).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            Log.e(TAG, "read - " + e.getCause());
+        }
+        return null;
+    }
+
+    public interface QueueColumns {
+
+        /* Table name */
+        public static final String NAME = "queue";
+
+        /* Sort key column */
+        public static final String KEY = "sortkey";
+
+        /* Marshalled song column */
+        public static final String SONG = "song";
+    }
+
+    public interface ShuffleColumns {
+
+        /* Table name */
+        public static final String NAME = "shuffle";
+
+        /* Queue positions in play order, as big-endian ints */
+        public static final String ORDER = "playorder";
+    }
+}
@@ -43,6 +43,7 @@ import the.topmusic.Config;
 import the.topmusic.MusicStateListener;
 import the.topmusic.R;
 import the.topmusic.adapters.AlbumAdapter;
+import the.topmusic.cache.ImagePrefetcher;
 import the.topmusic.loaders.AlbumLoader;
 import the.topmusic.menu.CreateNewPlaylist;
 import the.topmusic.menu.DeleteDialog;
@@ -91,6 +92,11 @@ public class AlbumFragment extends SherlockFragment implements LoaderCallbacks<L
      */
     private AlbumAdapter mAdapter;
 
+    /**
+     * Prefetches the images of the items about to be scrolled into view
+     */
+    private ImagePrefetcher mPrefetcher;
+
     /**
      * The grid view
      */
@@ -141,6 +147,8 @@ public class AlbumFragment extends SherlockFragment implements LoaderCallbacks<L
             layout = R.layout.grid_items_normal;
         }
         mAdapter = new AlbumAdapter(getSherlockActivity(), layout);
+        mPrefetcher = new ImagePrefetcher(TopMusicUtils.getImageFetcher(getSherlockActivity()),
+                mAdapter);
     }
 
     /**
@@ -272,6 +280,7 @@ public class AlbumFragment extends SherlockFragment implements LoaderCallbacks<L
             mAdapter.setPauseDiskCache(false);
             mAdapter.notifyDataSetChanged();
         }
+        mPrefetcher.onScrollStateChanged(scrollState);
     }
 
     /**
@@ -377,7 +386,7 @@ public class AlbumFragment extends SherlockFragment implements LoaderCallbacks<L
     @Override
     public void onScroll(final AbsListView view, final int firstVisibleItem,
                          final int visibleItemCount, final int totalItemCount) {
-        // Nothing to do
+        mPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
     }
 
     /**
@@ -42,6 +42,7 @@ import java.util.List;
 import the.topmusic.MusicStateListener;
 import the.topmusic.R;
 import the.topmusic.adapters.ArtistAdapter;
+import the.topmusic.cache.ImagePrefetcher;
 import the.topmusic.loaders.ArtistLoader;
 import the.topmusic.menu.CreateNewPlaylist;
 import the.topmusic.menu.DeleteDialog;
@@ -90,6 +91,11 @@ public class ArtistFragment extends SherlockFragment implements LoaderCallbacks<
      */
     private ArtistAdapter mAdapter;
 
+    /**
+     * Prefetches the images of the items about to be scrolled into view
+     */
+    private ImagePrefetcher mPrefetcher;
+
     /**
      * The grid view
      */
@@ -147,6 +153,8 @@ public class ArtistFragment extends SherlockFragment implements LoaderCallbacks<
             layout = R.layout.grid_items_normal;
         }
         mAdapter = new ArtistAdapter(getSherlockActivity(), layout);
+        mPrefetcher = new ImagePrefetcher(TopMusicUtils.getImageFetcher(getSherlockActivity()),
+                mAdapter);
     }
 
     /**
@@ -270,6 +278,7 @@ public class ArtistFragment extends SherlockFragment implements LoaderCallbacks<
             mAdapter.setPauseDiskCache(false);
             mAdapter.notifyDataSetChanged();
         }
+        mPrefetcher.onScrollStateChanged(scrollState);
     }
 
     /**
@@ -375,7 +384,7 @@ public class ArtistFragment extends SherlockFragment implements LoaderCallbacks<
     @Override
     public void onScroll(final AbsListView view, final int firstVisibleItem,
                          final int visibleItemCount, final int totalItemCount) {
-        // Nothing to do
+        mPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
     }
 
     /**
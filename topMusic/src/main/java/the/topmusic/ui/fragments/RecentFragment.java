@@ -40,6 +40,7 @@ import the.topmusic.Config;
 import the.topmusic.MusicStateListener;
 import the.topmusic.R;
 import the.topmusic.adapters.AlbumAdapter;
+import the.topmusic.cache.ImagePrefetcher;
 import the.topmusic.loaders.RecentLoader;
 import the.topmusic.menu.CreateNewPlaylist;
 import the.topmusic.menu.DeleteDialog;
@@ -90,6 +91,11 @@ public class RecentFragment extends SherlockFragment implements LoaderCallbacks<
      */
     private AlbumAdapter mAdapter;
 
+    /**
+     * Prefetches the images of the items about to be scrolled into view
+     */
+    private ImagePrefetcher mPrefetcher;
+
     /**
      * The grid view
      */
@@ -140,6 +146,8 @@ public class RecentFragment extends SherlockFragment implements LoaderCallbacks<
             layout = R.layout.grid_items_normal;
         }
         mAdapter = new AlbumAdapter(getSherlockActivity(), layout);
+        mPrefetcher = new ImagePrefetcher(TopMusicUtils.getImageFetcher(getSherlockActivity()),
+                mAdapter);
     }
 
     /**
@@ -279,6 +287,7 @@ public class RecentFragment extends SherlockFragment implements LoaderCallbacks<
             mAdapter.setPauseDiskCache(false);
             mAdapter.notifyDataSetChanged();
         }
+        mPrefetcher.onScrollStateChanged(scrollState);
     }
 
     /**
@@ -342,7 +351,7 @@ public class RecentFragment extends SherlockFragment implements LoaderCallbacks<
     @Override
     public void onScroll(final AbsListView view, final int firstVisibleItem,
             final int visibleItemCount, final int totalItemCount) {
-        // Nothing to do
+        mPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
     }
 
     /**
@@ -18,16 +18,19 @@ import android.widget.ListView;
 
 import com.actionbarsherlock.app.SherlockFragment;
 
+import java.net.URI;
 import java.util.List;
 
 import the.topmusic.Config;
 import the.topmusic.MusicStateListener;
+import the.topmusic.HTTP.HTTPCache;
 import the.topmusic.R;
 import the.topmusic.loaders.XMusicEntryLoader;
 import the.topmusic.model.XMusicEntry;
 import the.topmusic.recycler.RecycleHolder;
 import the.topmusic.ui.activities.BaseActivity;
 import the.topmusic.ui.activities.SearchOnlineActivity;
+import the.topmusic.utils.DiskCacheUtils;
 
 /**
  * Created by lucd on 9/30/14.
@@ -36,7 +39,8 @@ public abstract class XMusicBaseListFragment extends SherlockFragment implements
         LoaderManager.LoaderCallbacks<List<XMusicEntry>>,
         AdapterView.OnItemClickListener,
         MusicStateListener,
-        BaseActivity.SearchProvider {
+        BaseActivity.SearchProvider,
+        HTTPCache.OnCacheUpdatedListener {
     /**
      * LoaderCallbacks identifier
      */
@@ -211,6 +215,56 @@ public abstract class XMusicBaseListFragment extends SherlockFragment implements
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onStart() {
+        super.onStart();
+        try {
+            HTTPCache.getDefaultCache().addOnCacheUpdatedListener(this);
+        } catch (DiskCacheUtils.NoCacheAvailableException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onStop() {
+        super.onStop();
+        try {
+            HTTPCache.getDefaultCache().removeOnCacheUpdatedListener(this);
+        } catch (DiskCacheUtils.NoCacheAvailableException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The list may have been loaded from a stale cache entry, reload it in
+     * place once the background revalidation brought new content.
+     */
+    @Override
+    public void onCacheUpdated(final URI uri) {
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!isAdded() || mEntry == null || mEntry.mUrl == null) {
+                    return;
+                }
+                if (uri.toString().equals(XMusicEntryLoader.urlForEntry(mEntry))) {
+                    // No progress dialog, the current content stays until the new one arrives
+                    getLoaderManager().restartLoader(LOADER, mRootBundle, XMusicBaseListFragment.this);
+                }
+            }
+        });
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -15,6 +15,7 @@ import java.util.Stack;
 import the.topmusic.Config;
 import the.topmusic.R;
 import the.topmusic.adapters.XMusicEntryAdapter;
+import the.topmusic.cache.ImagePrefetcher;
 import the.topmusic.model.XMusicEntry;
 import the.topmusic.ui.activities.OnBackPressedListener;
 import the.topmusic.ui.fragments.XMusicBaseListFragment;
@@ -29,6 +30,11 @@ public class XMusicListFragment extends XMusicBaseListFragment implements AbsLis
     protected final Stack<XMusicEntry> navigationStack = new Stack<XMusicEntry>();
     private boolean loadingMore;
 
+    /**
+     * Prefetches the images of the items about to be scrolled into view
+     */
+    private ImagePrefetcher mPrefetcher;
+
     public static Bundle createParams(Context context, String id, String name, String url_path) {
         String baseURL = PreferenceUtils.getInstace(context).serverLocaion(context);
         Bundle bundle = new Bundle();
@@ -65,6 +71,16 @@ public class XMusicListFragment extends XMusicBaseListFragment implements AbsLis
         return new XMusicEntryAdapter(context, layoutId);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mPrefetcher = new ImagePrefetcher(TopMusicUtils.getImageFetcher(getSherlockActivity()),
+                getAdapter());
+    }
+
     /**
      * Sets up various helpers for both the list and grid
      *
@@ -170,11 +186,16 @@ public class XMusicListFragment extends XMusicBaseListFragment implements AbsLis
             getAdapter().setPauseDiskCache(false);
             getAdapter().notifyDataSetChanged();
         }
+        if (mPrefetcher != null) {
+            mPrefetcher.onScrollStateChanged(scrollState);
+        }
     }
 
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
-
+        if (mPrefetcher != null) {
+            mPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+        }
     }
 
     @Override
@@ -11,10 +11,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import the.topmusic.cache.CacheTeeInputStream;
+import the.topmusic.cache.DiskCache;
 import the.topmusic.cache.DiskLruCache;
+import the.topmusic.cache.ShardedDiskLruCache;
 
 /**
  * Created by lucd on 9/21/14.
@@ -25,6 +29,35 @@ public class DiskCacheUtils {
      * Disk cache index to read from
      */
     private static final int DISK_CACHE_INDEX = 0;
+    /**
+     * Bytes copied at a time from a stream into the cache
+     */
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Number of independently locked segments each disk cache is split into
+     */
+    private static final int DISK_CACHE_SEGMENTS = 4;
+    /**
+     * Journal records are flushed in batches of this many, or after this delay
+     */
+    private static final int JOURNAL_GROUP_COMMIT_RECORDS = 64;
+    private static final long JOURNAL_GROUP_COMMIT_DELAY = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /**
+     * MessageDigest is not thread safe and expensive to look up, so every
+     * thread keeps its own. Null if the platform has no MD5.
+     */
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (final NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
     private static DiskCacheUtils instance = null;
     private static String mCachePath = null;
 
@@ -32,6 +65,12 @@ public class DiskCacheUtils {
         init(context);
     }
 
+    /**
+     * Without a cache directory, for caches the caller opens itself
+     */
+    public DiskCacheUtils() {
+    }
+
     public static DiskCacheUtils getDefaultCache() {
         return instance;
     }
@@ -62,15 +101,26 @@ public class DiskCacheUtils {
      * to store a filename on the disk, to hex digits.
      */
     private static String bytesToHexString(final byte[] bytes) {
-        final StringBuilder builder = new StringBuilder();
-        for (final byte b : bytes) {
-            final String hex = Integer.toHexString(0xFF & b);
-            if (hex.length() == 1) {
-                builder.append('0');
-            }
-            builder.append(hex);
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int b = bytes[i] & 0xFF;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
         }
-        return builder.toString();
+        return new String(hex);
+    }
+
+    /**
+     * @param key The string to hash
+     * @return The MD5 of {@code key} in UTF-8, as 32 lowercase hex digits
+     */
+    public static String md5Hex(final String key) {
+        final MessageDigest digest = MD5.get();
+        if (digest == null) {
+            return String.valueOf(key.hashCode());
+        }
+        // digest() resets it for the next use on this thread
+        return bytesToHexString(digest.digest(key.getBytes(UTF_8)));
     }
 
     private void init(Context context) {
@@ -80,15 +130,25 @@ public class DiskCacheUtils {
     }
 
     public void initDiskCacheFor(final DiskCacheUser user, final int cacheSize, boolean diskCacheReadonly) {
+        initDiskCacheFor(user, cacheSize, diskCacheReadonly, 1, 1);
+    }
+
+    /**
+     * @param appVersion Version of the on-disk layout. A cache written with a
+     *                   different version (or value count) is wiped when opened.
+     * @param valueCount Number of values per cache entry
+     */
+    public void initDiskCacheFor(final DiskCacheUser user, final int cacheSize, boolean diskCacheReadonly,
+                                 final int appVersion, final int valueCount) {
         // Initialize the disk cahe in a background thread
         try {
-            initDiskCache(user, cacheSize, diskCacheReadonly);
+            initDiskCache(user, cacheSize, diskCacheReadonly, appVersion, valueCount);
         } catch (NoCacheAvailableException e) {
             e.printStackTrace();
         }
     }
 
-    public void addToStreamedCache(final DiskLruCache cache, final String key, final AddToCacheBlock block) {
+    public void addToStreamedCache(final DiskCache cache, final String key, final AddToCacheBlock block) {
         if (cache == null || key == null || block == null) {
             return;
         }
@@ -104,7 +164,6 @@ public class DiskCacheUtils {
                     block.writeTo(out);
                     editor.commit();
                     out.close();
-                    flush(cache);
                 }
             } else {
                 snapshot.getInputStream(DISK_CACHE_INDEX).close();
@@ -124,7 +183,149 @@ public class DiskCacheUtils {
         }
     }
 
-    public void addStringToCache(final DiskLruCache cache, final String key, final String value) {
+    /**
+     * Wraps {@code source} so that every byte the caller reads from it is also
+     * written to the cache entry for {@code key}. The entry is committed once
+     * the caller reads to EOF and aborted if the stream is closed before that.
+     *
+     * @param listener Called once the entry has been committed, may be null
+     * @return The tee stream, or {@code source} itself if the entry could not
+     * be opened for editing
+     */
+    public InputStream teeToStreamedCache(final DiskCache cache, final String key,
+                                          final InputStream source,
+                                          final CacheTeeInputStream.OnCommitListener listener) {
+        return teeToStreamedCache(cache, editCache(cache, key), DISK_CACHE_INDEX, source, -1, listener);
+    }
+
+    /**
+     * Same as {@link #teeToStreamedCache(DiskCache, String, InputStream,
+     * CacheTeeInputStream.OnCommitListener)}, for an editor the caller already
+     * opened, e.g. to set other values of a multi-value entry first.
+     *
+     * @param index          The value index the stream is copied to
+     * @param expectedLength The length of {@code source} if known, else -1.
+     *                       The entry is committed as soon as that much was read.
+     */
+    public InputStream teeToStreamedCache(final DiskCache cache, final DiskLruCache.Editor editor,
+                                          final int index, final InputStream source,
+                                          final long expectedLength,
+                                          final CacheTeeInputStream.OnCommitListener listener) {
+        if (editor == null) {
+            return source;
+        }
+
+        try {
+            if (cache != null && source != null) {
+                return new CacheTeeInputStream(source, editor, index, expectedLength,
+                        new CacheTeeInputStream.OnCommitListener() {
+                            @Override
+                            public void onCommitted() {
+                                if (listener != null) {
+                                    listener.onCommitted();
+                                }
+                            }
+                        });
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "teeToStreamedCache - " + e);
+        }
+        try {
+            editor.abort();
+        } catch (final IOException e) {
+            Log.e(TAG, "teeToStreamedCache - " + e);
+        }
+        return source;
+    }
+
+    /**
+     * Copies {@code source} to EOF into the value of {@code editor}, as is and
+     * in bulk. The edit is committed only if the whole stream was copied; it
+     * is aborted if {@code source} is null, a read fails or the calling thread
+     * is interrupted. {@code source} is left open.
+     *
+     * @param editor An editor from {@link #editCache(DiskCache, String)}
+     * @return True if the edit was committed
+     */
+    public boolean copyToStreamedCache(final DiskLruCache.Editor editor, final InputStream source) {
+        if (editor == null) {
+            return false;
+        }
+
+        boolean committed = false;
+        OutputStream out = null;
+        try {
+            if (source != null) {
+                out = editor.newOutputStream(DISK_CACHE_INDEX);
+                final byte[] buffer = new byte[IO_BUFFER_SIZE];
+                int readBytes;
+                while ((readBytes = source.read(buffer)) != -1
+                        && !Thread.currentThread().isInterrupted()) {
+                    out.write(buffer, 0, readBytes);
+                }
+                if (readBytes == -1) {
+                    out.close();
+                    out = null;
+                    editor.commit();
+                    committed = true;
+                }
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "copyToStreamedCache - " + e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                if (!committed) {
+                    editor.abort();
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "copyToStreamedCache - " + e);
+            } catch (final IllegalStateException e) {
+                Log.e(TAG, "copyToStreamedCache - " + e);
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Opens an editor on the entry for {@code key}. Every editor returned must
+     * be committed or aborted.
+     *
+     * @return The editor, or null if the entry is being edited elsewhere
+     */
+    public DiskLruCache.Editor editCache(final DiskCache cache, final String key) {
+        if (cache == null || key == null) {
+            return null;
+        }
+
+        try {
+            return cache.edit(hashKeyForDisk(key));
+        } catch (final IOException e) {
+            Log.e(TAG, "editCache - " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a snapshot of all values of the entry for {@code key}, or null if
+     * it is not cached. The caller owns the snapshot and must close it.
+     */
+    public DiskLruCache.Snapshot getSnapshotFromCache(final DiskCache cache, final String key) {
+        if (cache == null || key == null) {
+            return null;
+        }
+
+        try {
+            return cache.get(hashKeyForDisk(key));
+        } catch (final IOException e) {
+            Log.e(TAG, "getSnapshotFromCache - " + e);
+        }
+        return null;
+    }
+
+    public void addStringToCache(final DiskCache cache, final String key, final String value) {
         if (cache == null || key == null || value == null) {
             return;
         }
@@ -146,7 +347,7 @@ public class DiskCacheUtils {
         }
     }
 
-    public String getStringFromCache(final DiskLruCache cache, final String index) {
+    public String getStringFromCache(final DiskCache cache, final String index) {
         if (cache == null || index == null) {
             return null;
         }
@@ -166,7 +367,7 @@ public class DiskCacheUtils {
         return retv;
     }
 
-    public void getFileStreamFromCache(final DiskLruCache cache, final String index, final GetFromCacheBlock block) {
+    public void getFileStreamFromCache(final DiskCache cache, final String index, final GetFromCacheBlock block) {
         if (cache == null || index == null || block == null) {
             return;
         }
@@ -196,7 +397,7 @@ public class DiskCacheUtils {
     /**
      * @param key The key used to identify which cache entries to delete.
      */
-    public void removeKeyFromCache(final DiskLruCache cache, final String key) {
+    public void removeKeyFromCache(final DiskCache cache, final String key) {
         if (key == null) {
             return;
         }
@@ -209,14 +410,13 @@ public class DiskCacheUtils {
         } catch (final IOException e) {
             Log.e(TAG, "remove - " + e);
         }
-        flush(cache);
     }
 
     /**
      * flush() is called to synchronize up other methods that are accessing the
      * cache first
      */
-    public void flush(final DiskLruCache cache) {
+    public void flush(final DiskCache cache) {
         if (cache != null) {
             try {
                 if (!cache.isClosed()) {
@@ -236,11 +436,13 @@ public class DiskCacheUtils {
      *  @param user      The DiskUser
      * @param cacheSize Max size of cache in bytes
      * @param readOnly
+     * @param appVersion
+     * @param valueCount
      */
-    private void initDiskCache(DiskCacheUser user, int cacheSize, boolean readOnly) throws NoCacheAvailableException {
+    private void initDiskCache(DiskCacheUser user, int cacheSize, boolean readOnly, int appVersion, int valueCount) throws NoCacheAvailableException {
         String TAG = user.getUniqueIdentifier();
 
-        DiskLruCache diskCache = null;
+        ShardedDiskLruCache diskCache = null;
         // Set up disk cache
         File diskCacheDir = getDiskCacheDir(TAG);
         if (diskCacheDir != null) {
@@ -249,7 +451,10 @@ public class DiskCacheUtils {
             }
             if (getUsableSpace(diskCacheDir) > cacheSize) {
                 try {
-                    diskCache = DiskLruCache.open(diskCacheDir, 1, 1, cacheSize, readOnly);
+                    diskCache = ShardedDiskLruCache.open(diskCacheDir, appVersion, valueCount, cacheSize,
+                            readOnly, DISK_CACHE_SEGMENTS);
+                    // Writers no longer flush the journal after every entry
+                    diskCache.setGroupCommit(JOURNAL_GROUP_COMMIT_DELAY, JOURNAL_GROUP_COMMIT_RECORDS);
                 } catch (final IOException e) {
                     diskCacheDir = null;
                 }
@@ -314,19 +519,11 @@ public class DiskCacheUtils {
      * @param key The key used to store the file
      */
     public String hashKeyForDisk(final String key) {
-        String cacheKey;
-        try {
-            final MessageDigest digest = MessageDigest.getInstance("MD5");
-            digest.update(key.getBytes());
-            cacheKey = bytesToHexString(digest.digest());
-        } catch (final NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
+        return md5Hex(key);
     }
 
     public interface DiskCacheUser {
-        void setCache(DiskLruCache cache);
+        void setCache(DiskCache cache);
 
         String getUniqueIdentifier();
     }
@@ -38,8 +38,10 @@ import android.view.SubMenu;
 import android.widget.Toast;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Formatter;
+import java.util.List;
 import java.util.Locale;
 import java.util.WeakHashMap;
 
@@ -64,6 +66,10 @@ import the.topmusic.provider.RecentStore;
  */
 public final class MusicUtils {
 
+    /**
+     * Number of queued tracks fetched from the service at once
+     */
+    private static final int QUEUE_PAGE_SIZE = 100;
     private static final WeakHashMap<Context, ServiceBinder> mConnectionMap;
     private static final Song[] sEmptyList;
     public static ITopMusicService mService = null;
@@ -424,18 +430,57 @@ public final class MusicUtils {
     }
 
     /**
-     * @return The queue.
+     * @return The queue, fetched a page at a time.
      */
     public static Song[] getQueue() {
+        final int size = getQueueSize();
+        final List<Song> queue = new ArrayList<Song>(size);
+        int position = 0;
+        while (position < size) {
+            final Song[] songs = getQueue(position, QUEUE_PAGE_SIZE);
+            if (songs.length == 0) {
+                break;
+            }
+            position += songs.length;
+            for (final Song song : songs) {
+                // The service drops a track it could not read back
+                if (song != null) {
+                    queue.add(song);
+                }
+            }
+        }
+        return queue.toArray(new Song[queue.size()]);
+    }
+
+    /**
+     * @param first The position of the first track to return.
+     * @param count The most tracks to return.
+     * @return Part of the queue, starting at {@code first}. Null where a
+     *         track could not be read back.
+     */
+    public static Song[] getQueue(final int first, final int count) {
         try {
             if (mService != null) {
-                return mService.getQueue();
+                return mService.getQueueRange(first, count);
             }
         } catch (final RemoteException ignored) {
         }
         return sEmptyList;
     }
 
+    /**
+     * @return The number of tracks in the queue.
+     */
+    public static int getQueueSize() {
+        try {
+            if (mService != null) {
+                return mService.getQueueSize();
+            }
+        } catch (final RemoteException ignored) {
+        }
+        return 0;
+    }
+
     /**
      * @param id The ID of the track to remove.
      * @return removes track from a playlist or the queue.
@@ -634,7 +679,8 @@ public final class MusicUtils {
             }
             final String currentId = mService.getAudioId();
             final int currentQueuePosition = getQueuePosition();
-            if (position != -1 && currentQueuePosition == position && currentId != null && currentId.equals(list[position].mSongId)) {
+            if (position != -1 && currentQueuePosition == position && currentId != null && currentId.equals(list[position].mSongId)
+                    && getQueueSize() == list.length) {
                 final Song[] playlist = getQueue();
                 if (Arrays.equals(list, playlist)) {
                     mService.play();
@@ -16,6 +16,7 @@ import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 
+import the.topmusic.HTTP.HTTPClientFarm;
 import the.topmusic.R;
 import the.topmusic.ui.fragments.AlbumFragment;
 import the.topmusic.ui.fragments.ArtistFragment;
@@ -85,6 +86,16 @@ public final class PreferenceUtils {
 
     public static final String HOME_BROWSER_TYPE = "home_browser_type";
 
+    // Keys used to tune the HTTP connection pool, see HTTPClientFarm
+    public static final String HTTP_MAX_CONNECTIONS_PER_ROUTE = "http_max_connections_per_route";
+    public static final String HTTP_MAX_CONNECTIONS_TOTAL = "http_max_connections_total";
+    public static final String HTTP_CONNECTION_TIMEOUT = "http_connection_timeout";
+    public static final String HTTP_SOCKET_TIMEOUT = "http_socket_timeout";
+    public static final String HTTP_IDLE_TIMEOUT = "http_idle_timeout";
+    public static final String HTTP_CONNECTION_TTL = "http_connection_ttl";
+    public static final String HTTP_SOCKET_BUFFER_SIZE = "http_socket_buffer_size";
+    public static final String HTTP_TCP_NODELAY = "http_tcp_nodelay";
+
     private static PreferenceUtils sInstance;
 
     private final SharedPreferences mPreferences;
@@ -498,4 +509,99 @@ public final class PreferenceUtils {
     public final String homeBrowserType(final Context context) {
         return mPreferences.getString(HOME_BROWSER_TYPE, "online");
     }
+
+    /**
+     * @return The maximum number of pooled HTTP connections to one host
+     */
+    public final int getHttpMaxConnectionsPerRoute() {
+        return mPreferences.getInt(HTTP_MAX_CONNECTIONS_PER_ROUTE, HTTPClientFarm.MAX_CONNECTIONS_PER_ROUTE);
+    }
+
+    /**
+     * @return The maximum number of pooled HTTP connections overall
+     */
+    public final int getHttpMaxConnectionsTotal() {
+        return mPreferences.getInt(HTTP_MAX_CONNECTIONS_TOTAL, HTTPClientFarm.MAX_CONNECTIONS_TOTAL);
+    }
+
+    /**
+     * @return The HTTP connect timeout in milliseconds
+     */
+    public final int getHttpConnectionTimeout() {
+        return mPreferences.getInt(HTTP_CONNECTION_TIMEOUT, HTTPClientFarm.CONNECTION_TIMEOUT);
+    }
+
+    /**
+     * @return The HTTP read timeout in milliseconds
+     */
+    public final int getHttpSocketTimeout() {
+        return mPreferences.getInt(HTTP_SOCKET_TIMEOUT, HTTPClientFarm.SOCKET_TIMEOUT);
+    }
+
+    /**
+     * @return How long a pooled HTTP connection may sit unused before it is
+     * closed, in seconds
+     */
+    public final int getHttpIdleTimeout() {
+        return mPreferences.getInt(HTTP_IDLE_TIMEOUT, HTTPClientFarm.IDLE_TIMEOUT);
+    }
+
+    /**
+     * @return How long a pooled HTTP connection may be kept alive at most,
+     * in seconds
+     */
+    public final int getHttpConnectionTTL() {
+        return mPreferences.getInt(HTTP_CONNECTION_TTL, HTTPClientFarm.CONNECTION_TTL);
+    }
+
+    /**
+     * @return The HTTP socket buffer size in bytes
+     */
+    public final int getHttpSocketBufferSize() {
+        return mPreferences.getInt(HTTP_SOCKET_BUFFER_SIZE, HTTPClientFarm.SOCKET_BUFFER_SIZE);
+    }
+
+    /**
+     * @return True if Nagle's algorithm is disabled on HTTP sockets
+     */
+    public final boolean httpTcpNoDelay() {
+        return mPreferences.getBoolean(HTTP_TCP_NODELAY, HTTPClientFarm.TCP_NODELAY);
+    }
+
+    /**
+     * Saves one of the integer HTTP connection pool settings. They take
+     * effect the next time {@link the.topmusic.HTTP.HTTPClientFarm} is
+     * configured.
+     *
+     * @param key   One of the {@code HTTP_*} keys
+     * @param value The new value
+     */
+    public void setHttpConnectionSetting(final String key, final int value) {
+        TopMusicUtils.execute(false, new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(final Void... unused) {
+                final SharedPreferences.Editor editor = mPreferences.edit();
+                editor.putInt(key, value);
+                SharedPreferencesCompat.apply(editor);
+
+                return null;
+            }
+        }, (Void[]) null);
+    }
+
+    /**
+     * @param value True to disable Nagle's algorithm on HTTP sockets
+     */
+    public void setHttpTcpNoDelay(final boolean value) {
+        TopMusicUtils.execute(false, new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(final Void... unused) {
+                final SharedPreferences.Editor editor = mPreferences.edit();
+                editor.putBoolean(HTTP_TCP_NODELAY, value);
+                SharedPreferencesCompat.apply(editor);
+
+                return null;
+            }
+        }, (Void[]) null);
+    }
 }
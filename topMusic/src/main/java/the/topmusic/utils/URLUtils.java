@@ -39,6 +39,11 @@ public class URLUtils {
         HTTPCache.setDefaultCacheSize(context, 100 * 1024 * 1024); // 100 MiB
     }
 
+    /**
+     * @param useCache If true, a stale cached copy is returned right away and
+     *                 revalidated in the background, see
+     *                 {@link HTTPCache#HTTPReturnStaleWhileRevalidateCachePolicy}
+     */
     public static String getUrlAsString(final String url, int timeout, boolean useCache) throws Exception, DiskCacheUtils.NoCacheAvailableException, HTTPServiceException {
 
         // Perform a GET request for the lyrics
@@ -48,6 +53,10 @@ public class URLUtils {
 //        httpURLConnection.setUseCaches(useCache);
 //        httpURLConnection.connect();
         HttpConnect httpURLConnection = new HttpConnect(url);
+        if (useCache) {
+            httpURLConnection.setCachePolicy(HTTPCache.HTTPAskServerIfModifiedWhenStaleCachePolicy
+                    | HTTPCache.HTTPReturnStaleWhileRevalidateCachePolicy);
+        }
         if (httpURLConnection.execute(false)) {
             final InputStreamReader input = new InputStreamReader(httpURLConnection.getResponseStream());
             // Read the server output
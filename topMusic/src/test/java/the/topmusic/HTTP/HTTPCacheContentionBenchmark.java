@@ -0,0 +1,113 @@
+package the.topmusic.HTTP;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import the.topmusic.cache.DiskLruCache;
+import the.topmusic.cache.ShardedDiskLruCache;
+import the.topmusic.utils.DiskCacheUtils;
+
+/**
+ * Times {@link HTTPCache} with 1 to 8 threads, each storing and reading back
+ * URIs of its own. The bodies are too large for the memory tier, so every
+ * call goes to disk. The same run with every call wrapped in one global
+ * monitor stands in for the synchronized(this) HTTPCache used to take.
+ */
+public class HTTPCacheContentionBenchmark {
+
+    private static final int[] THREAD_COUNTS = {
+            1, 2, 4, 8
+    };
+
+    private static final int URIS_PER_THREAD = 16;
+
+    private static final int BODY_SIZE = 256 * 1024;
+
+    private static final long DURATION_MILLIS = 3000;
+
+    public static void main(final String[] args) throws Exception {
+        for (final int threads : THREAD_COUNTS) {
+            System.out.printf("%d thread(s): striped %.0f ops/s, global lock %.0f ops/s%n", threads,
+                    run(threads, false), run(threads, true));
+        }
+    }
+
+    private static double run(final int threads, final boolean globalLock) throws Exception {
+        final File directory = File.createTempFile("HTTPCacheContentionBenchmark", "");
+        directory.delete();
+        directory.mkdir();
+        final ShardedDiskLruCache diskCache = ShardedDiskLruCache.open(directory, 3, 2,
+                100 * 1024 * 1024, false, 4);
+        final HTTPCache cache = new HTTPCache(new DiskCacheUtils(), diskCache);
+        final Object monitor = new Object();
+        final AtomicInteger operations = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    final Random random = new Random(thread);
+                    final byte[] body = new byte[BODY_SIZE];
+                    random.nextBytes(body);
+                    final byte[] buffer = new byte[8192];
+                    try {
+                        start.await();
+                        for (int i = 0; System.currentTimeMillis() < deadline[0]; i++) {
+                            final URI uri = new URI("http://api.example.com/thread" + thread
+                                    + "/list/" + i % URIS_PER_THREAD);
+                            // Write a URI the first time round, then mostly read
+                            final boolean write = i < URIS_PER_THREAD || random.nextInt(4) == 0;
+                            if (write) {
+                                final Map<String, String> headers = new LinkedHashMap<String, String>();
+                                headers.put("Content-Type", "image/jpeg");
+                                if (globalLock) {
+                                    synchronized (monitor) {
+                                        cache.put(uri, headers, body, 3600);
+                                    }
+                                } else {
+                                    cache.put(uri, headers, body, 3600);
+                                }
+                            } else {
+                                final HTTPCacheResponse response;
+                                if (globalLock) {
+                                    synchronized (monitor) {
+                                        response = cache.get(uri, HTTPCache.HTTPOnlyLoadIfNotCachedCachePolicy);
+                                    }
+                                } else {
+                                    response = cache.get(uri, HTTPCache.HTTPOnlyLoadIfNotCachedCachePolicy);
+                                }
+                                final InputStream in = response.getBody();
+                                while (in.read(buffer) != -1) {
+                                }
+                                in.close();
+                            }
+                            operations.incrementAndGet();
+                        }
+                    } catch (final Throwable e) {
+                        // NoCacheAvailableException is a Throwable
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        deadline[0] = System.currentTimeMillis() + DURATION_MILLIS;
+        start.countDown();
+        done.await();
+        final double perSecond = operations.get() * 1000.0 / DURATION_MILLIS;
+        diskCache.close();
+        DiskLruCache.deleteContents(directory);
+        directory.delete();
+        return perSecond;
+    }
+}
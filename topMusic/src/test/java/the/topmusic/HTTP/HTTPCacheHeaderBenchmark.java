@@ -0,0 +1,99 @@
+package the.topmusic.HTTP;
+
+import com.google.gson.Gson;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Times reading back the cached metadata of a response and deciding whether
+ * it is fresh: {@link HTTPCacheHeader#decode(byte[])} and a comparison
+ * against its expiry, against the JSON headers read with a new Gson and the
+ * fetch date parsed with SimpleDateFormat, as HTTPCache used to.
+ */
+public class HTTPCacheHeaderBenchmark {
+
+    private static final int ITERATIONS = 200000;
+
+    private static final String FETCH_DATE_HEADER = "X-GYHTTPCache-Fetch-date";
+
+    // Reused, as HTTPCache reused its formatter
+    private static final SimpleDateFormat sFormat = rfc1123();
+
+    // Keeps the results from being optimized away
+    private static volatile int sSink;
+
+    public static void main(final String[] args) throws Exception {
+        final SimpleDateFormat format = sFormat;
+        final long now = System.currentTimeMillis();
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Server", "nginx/1.6.2");
+        headers.put("Date", format.format(new Date(now)));
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        headers.put("Content-Length", "48213");
+        headers.put("Connection", "keep-alive");
+        headers.put("Cache-Control", "public, max-age=3600");
+        headers.put("ETag", "\"5f1c2a9e-bc55\"");
+        headers.put("Last-Modified", format.format(new Date(now - 86400000L)));
+        headers.put("Content-Encoding", "gzip");
+        headers.put("Vary", "Accept-Encoding");
+        headers.put(FETCH_DATE_HEADER, format.format(new Date(now)));
+
+        final byte[] binary = new HTTPCacheHeader(headers, now + 3600000L, now + 3600000L).encode();
+        final String json = new Gson().toJson(headers);
+        System.out.printf("record size: binary %d bytes, JSON %d bytes%n", binary.length,
+                json.getBytes("UTF-8").length);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int fresh = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (binaryIsFresh(binary)) {
+                    fresh++;
+                }
+            }
+            final double binaryTime = (System.nanoTime() - start) / (double)ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (jsonIsFresh(json)) {
+                    fresh++;
+                }
+            }
+            final double jsonTime = (System.nanoTime() - start) / (double)ITERATIONS;
+            sSink = fresh;
+            // The first round warms up
+            if (round > 0) {
+                System.out.printf("decode and freshness check: binary %.2f us, Gson %.2f us%n",
+                        binaryTime / 1000, jsonTime / 1000);
+            }
+        }
+    }
+
+    private static boolean binaryIsFresh(final byte[] data) throws Exception {
+        return HTTPCacheHeader.decode(data).getExpires() > System.currentTimeMillis();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean jsonIsFresh(final String json) throws ParseException {
+        final Map<String, String> headers = new Gson().fromJson(json,
+                new LinkedHashMap<String, String>().getClass());
+        final String cacheControl = headers.get("Cache-Control").toLowerCase(Locale.US);
+        final long maxAge = Long.parseLong(cacheControl.substring(
+                cacheControl.indexOf("max-age")).split("=")[1]);
+        final Date fetchDate = sFormat.parse(headers.get(FETCH_DATE_HEADER));
+        return new Date(fetchDate.getTime() + maxAge * 1000).after(new Date());
+    }
+
+    private static SimpleDateFormat rfc1123() {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
@@ -0,0 +1,120 @@
+package the.topmusic.HTTP;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import the.topmusic.cache.DiskLruCache;
+import the.topmusic.utils.DiskCacheUtils;
+
+/**
+ * Times storing and reading back responses in the two layouts HTTPCache
+ * has used: header and body as two DiskLruCache entries under separately
+ * hashed keys, as it used to, and as values 0 and 1 of one entry, as it
+ * does now. Group commit is set up as the app does.
+ */
+public class HTTPCacheLayoutBenchmark {
+
+    private static final int RESPONSES = 1000;
+
+    private static final int HEADER_SIZE = 400;
+
+    private static final int BODY_SIZE = 16 * 1024;
+
+    public static void main(final String[] args) throws Exception {
+        final Random random = new Random(1);
+        final byte[] header = new byte[HEADER_SIZE];
+        final byte[] body = new byte[BODY_SIZE];
+        random.nextBytes(header);
+        random.nextBytes(body);
+        final String[] urls = new String[RESPONSES];
+        for (int i = 0; i < RESPONSES; i++) {
+            urls[i] = "http://api.example.com/chart/" + i + "?page=1";
+        }
+        for (int round = 0; round < 6; round++) {
+            final double[] two = run(false, urls, header, body);
+            final double[] one = run(true, urls, header, body);
+            // The first round warms up
+            if (round > 0) {
+                System.out.printf("two entries: put %.0f/s, get %.0f/s; one entry: put %.0f/s, get %.0f/s%n",
+                        two[0], two[1], one[0], one[1]);
+            }
+        }
+    }
+
+    /**
+     * @return Puts and gets per second
+     */
+    private static double[] run(final boolean oneEntry, final String[] urls, final byte[] header,
+                                final byte[] body) throws IOException {
+        final File directory = File.createTempFile("HTTPCacheLayoutBenchmark", "");
+        directory.delete();
+        directory.mkdir();
+        final DiskLruCache cache = DiskLruCache.open(directory, 1, oneEntry ? 2 : 1,
+                100 * 1024 * 1024, false);
+        cache.setGroupCommit(1000, 64);
+        final byte[] buffer = new byte[8192];
+        try {
+            long start = System.nanoTime();
+            for (final String url : urls) {
+                if (oneEntry) {
+                    final DiskLruCache.Editor editor = cache.edit(DiskCacheUtils.md5Hex(url));
+                    write(editor, 0, header);
+                    write(editor, 1, body);
+                    editor.commit();
+                } else {
+                    DiskLruCache.Editor editor = cache.edit(DiskCacheUtils.md5Hex(url + ".cachedHeader"));
+                    write(editor, 0, header);
+                    editor.commit();
+                    editor = cache.edit(DiskCacheUtils.md5Hex(url));
+                    write(editor, 0, body);
+                    editor.commit();
+                }
+            }
+            final double puts = urls.length * 1e9 / (System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (final String url : urls) {
+                if (oneEntry) {
+                    final DiskLruCache.Snapshot snapshot = cache.get(DiskCacheUtils.md5Hex(url));
+                    read(snapshot.getInputStream(0), buffer);
+                    read(snapshot.getInputStream(1), buffer);
+                } else {
+                    DiskLruCache.Snapshot snapshot = cache.get(DiskCacheUtils.md5Hex(url + ".cachedHeader"));
+                    read(snapshot.getInputStream(0), buffer);
+                    snapshot = cache.get(DiskCacheUtils.md5Hex(url));
+                    read(snapshot.getInputStream(0), buffer);
+                }
+            }
+            final double gets = urls.length * 1e9 / (System.nanoTime() - start);
+            return new double[] {
+                    puts, gets
+            };
+        } finally {
+            cache.close();
+            DiskLruCache.deleteContents(directory);
+            directory.delete();
+        }
+    }
+
+    private static void write(final DiskLruCache.Editor editor, final int index, final byte[] data)
+            throws IOException {
+        final OutputStream out = editor.newOutputStream(index);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void read(final InputStream in, final byte[] buffer) throws IOException {
+        try {
+            while (in.read(buffer) != -1) {
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
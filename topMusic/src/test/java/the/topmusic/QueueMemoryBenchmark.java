@@ -0,0 +1,132 @@
+package the.topmusic;
+
+import the.topmusic.model.Song;
+
+/**
+ * Measures the heap a queue takes per track, held as a {@code Song[]} as it
+ * used to be and as handles into a {@link MusicPlaybackService.SongTable}.
+ * Each enqueue unparcels fresh copies of the tracks, so every copy here has
+ * strings of its own. Runs on the JVM, whose object layout is close to but
+ * not the same as Dalvik's or ART's. Run with a fixed heap, e.g. -Xms512m
+ * -Xmx512m.
+ */
+public class QueueMemoryBenchmark {
+
+    private static final int[] QUEUE_SIZES = {
+            2000, 10000
+    };
+
+    // Holds on to what is measured until it is measured
+    private static Object sRetained;
+
+    public static void main(final String[] args) {
+        for (final int size : QUEUE_SIZES) {
+            System.out.println(size + " tracks, bytes per track:");
+            report("  Song[], distinct tracks", songArray(size, size));
+            report("  Song[], album queued twice", songArray(size, size / 2));
+            report("  handles, distinct tracks", handles(size, size));
+            report("  handles, album queued twice", handles(size, size / 2));
+            report("  handles, restored, none read back", unread(size));
+        }
+    }
+
+    private interface Queue {
+        Object build();
+
+        int size();
+    }
+
+    private static Queue songArray(final int size, final int distinct) {
+        return new Queue() {
+            @Override
+            public Object build() {
+                final Song[] queue = new Song[size];
+                for (int i = 0; i < size; i++) {
+                    queue[i] = track(i % distinct);
+                }
+                return queue;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static Queue handles(final int size, final int distinct) {
+        return new Queue() {
+            @Override
+            public Object build() {
+                final MusicPlaybackService.SongTable table = new MusicPlaybackService.SongTable();
+                final int[] queue = new int[size];
+                for (int i = 0; i < size; i++) {
+                    queue[i] = table.acquire(track(i % distinct));
+                }
+                return new Object[] {
+                        table, queue
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static Queue unread(final int size) {
+        return new Queue() {
+            @Override
+            public Object build() {
+                return new Object[] {
+                        new MusicPlaybackService.SongTable(), new int[size]
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @return A fresh copy of a track, like one unparcelled from an enqueue
+     */
+    private static Song track(final int index) {
+        final String id = String.valueOf(1000000 + index);
+        final String albumId = String.valueOf(3000000 + index / 12);
+        final String artistId = String.valueOf(2000000 + index / 120);
+        final Song song = new Song(id, "Track title number " + index, "Artist name " + index / 120,
+                artistId, "Album title " + index / 12, albumId, String.valueOf(180000 + index));
+        song.mURL = "http://music.example.com/stream/" + id + ".mp3?quality=high";
+        song.mImage = "http://img.example.com/album/" + albumId + "/500x500.jpg";
+        song.mThumbnail = "http://img.example.com/album/" + albumId + "/100x100.jpg";
+        return song;
+    }
+
+    private static void report(final String name, final Queue queue) {
+        // Once to warm up, the second to measure
+        sRetained = queue.build();
+        sRetained = null;
+        final long before = usedAfterGc();
+        sRetained = queue.build();
+        final long after = usedAfterGc();
+        System.out.println(name + ": " + (after - before) / queue.size());
+        sRetained = null;
+    }
+
+    private static long usedAfterGc() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
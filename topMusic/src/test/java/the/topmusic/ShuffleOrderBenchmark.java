@@ -0,0 +1,112 @@
+package the.topmusic;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Times {@link MusicPlaybackService.ShuffleOrder} on queues of 10,000 and
+ * 100,000 tracks: picking the next track, and a track queued plus one
+ * removed. Picking the next track is set against the search
+ * getNextPosition used to do for every track, which is copied here.
+ */
+public class ShuffleOrderBenchmark {
+
+    private static final int[] QUEUE_SIZES = {
+            10000, 100000
+    };
+
+    // The length of the history the old search struck out
+    private static final int MAX_HISTORY_SIZE = 100;
+
+    public static void main(final String[] args) {
+        for (final int size : QUEUE_SIZES) {
+            final MusicPlaybackService.ShuffleOrder order = new MusicPlaybackService.ShuffleOrder();
+            order.shuffle(size, -1);
+            int position = order.next(-1);
+            for (int i = 0; i < 1000000; i++) {
+                position = next(order, size, position);
+            }
+            final int nexts = 1000000;
+            long start = System.nanoTime();
+            for (int i = 0; i < nexts; i++) {
+                position = next(order, size, position);
+            }
+            final double next = (System.nanoTime() - start) / (double)nexts;
+
+            final Random random = new Random();
+            final int edits = 1000;
+            start = System.nanoTime();
+            for (int i = 0; i < edits; i++) {
+                order.insert(random.nextInt(size), 1, position);
+                final int removed = random.nextInt(size);
+                order.remove(removed, removed);
+                if (position == removed) {
+                    position = order.next(-1);
+                } else if (position > removed) {
+                    position--;
+                }
+            }
+            final double edit = (System.nanoTime() - start) / (double)edits;
+
+            final LinkedList<Integer> history = new LinkedList<Integer>();
+            int oldPosition = 0;
+            for (int i = 0; i < 1000; i++) {
+                oldPosition = oldNext(history, size, oldPosition, random);
+            }
+            final int oldNexts = 2000000000 / size / 10;
+            start = System.nanoTime();
+            for (int i = 0; i < oldNexts; i++) {
+                oldPosition = oldNext(history, size, oldPosition, random);
+            }
+            final double oldNext = (System.nanoTime() - start) / (double)oldNexts;
+
+            System.out.printf("%d tracks: next %.0f ns (old search %.1f us), insert plus remove %.1f us%n",
+                    size, next, oldNext / 1000, edit / 1000);
+        }
+    }
+
+    private static int next(final MusicPlaybackService.ShuffleOrder order, final int size,
+                            final int position) {
+        final int next = order.next(position);
+        if (next >= 0) {
+            return next;
+        }
+        // As getNextPosition does at the end of a round with repeat on
+        order.shuffle(size, position);
+        return order.next(position);
+    }
+
+    /**
+     * The next track as getNextPosition used to pick it: every position
+     * not in the history is a candidate, and a random one of them is
+     * searched for.
+     */
+    private static int oldNext(final LinkedList<Integer> history, final int size,
+                               final int position, final Random random) {
+        history.add(position);
+        if (history.size() > MAX_HISTORY_SIZE) {
+            history.remove(0);
+        }
+        final int[] tracks = new int[size];
+        for (int i = 0; i < size; i++) {
+            tracks[i] = i;
+        }
+        int unplayed = size;
+        for (final Integer played : history) {
+            if (played < size && tracks[played] >= 0) {
+                unplayed--;
+                tracks[played] = -1;
+            }
+        }
+        int skip = random.nextInt(unplayed);
+        int next = -1;
+        while (true) {
+            while (tracks[++next] < 0) {
+            }
+            skip--;
+            if (skip < 0) {
+                return next;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package the.topmusic.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when a tee stream commits its cache entry and when it aborts it.
+ */
+public class CacheTeeInputStreamTest {
+    private static final String KEY = "body";
+
+    private static final String BODY = "0123456789";
+
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("CacheTeeInputStreamTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        cache = DiskLruCache.open(directory, 1, 1, 1024 * 1024, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+        DiskLruCache.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test
+    public void commitsOnceExpectedLengthIsReadWithoutEof() throws IOException {
+        final InputStream in = tee(BODY, BODY.length());
+        // As a reader that knows the length would, never asking for EOF
+        final byte[] buffer = new byte[BODY.length()];
+        int read = 0;
+        while (read < buffer.length) {
+            read += in.read(buffer, read, buffer.length - read);
+        }
+        assertCached(BODY);
+        in.close();
+        assertCached(BODY);
+    }
+
+    @Test
+    public void commitsAtEofWhenLengthIsUnknown() throws IOException {
+        final InputStream in = tee(BODY, -1);
+        readFully(in);
+        in.close();
+        assertCached(BODY);
+    }
+
+    @Test
+    public void abortsWhenSourceEndsShort() throws IOException {
+        final InputStream in = tee(BODY, BODY.length() + 1);
+        readFully(in);
+        in.close();
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void abortsWhenSourceRunsLong() throws IOException {
+        final InputStream in = tee(BODY, BODY.length() - 1);
+        readFully(in);
+        in.close();
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void abortsWhenClosedEarly() throws IOException {
+        final InputStream in = tee(BODY, BODY.length());
+        in.read();
+        in.close();
+        assertNull(cache.get(KEY));
+    }
+
+    private InputStream tee(final String body, final long expectedLength) throws IOException {
+        final DiskLruCache.Editor editor = cache.edit(KEY);
+        assertNotNull(editor);
+        return new CacheTeeInputStream(new ByteArrayInputStream(body.getBytes("US-ASCII")), editor,
+                0, expectedLength, null);
+    }
+
+    private static void readFully(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[4];
+        while (in.read(buffer) != -1) {
+        }
+    }
+
+    private void assertCached(final String body) throws IOException {
+        final DiskLruCache.Snapshot snapshot = cache.get(KEY);
+        assertNotNull(snapshot);
+        try {
+            assertEquals(body, snapshot.getString(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package the.topmusic.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays journals cut off where a crash in group commit mode can leave them,
+ * and checks what opening the cache recovers.
+ */
+public class DiskLruCacheJournalTest {
+    private static final int APP_VERSION = 100;
+    private static final int VALUE_COUNT = 2;
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    private File directory;
+    private File journalFile;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("DiskLruCacheJournalTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        journalFile = new File(directory, DiskLruCache.JOURNAL_FILE);
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (cache != null) {
+            cache.close();
+        }
+        DiskLruCache.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test
+    public void recordCutOffMidLineIsDroppedAndJournalRebuilt() throws IOException {
+        set("alpha", "a", "b");
+        set("beta", "c", "d");
+        cache.close();
+        final String journal = readJournal();
+        // Keep "CLEAN beta 1" of "CLEAN beta 1 1\n"
+        truncateJournal(journal.lastIndexOf("CLEAN beta") + "CLEAN beta 1".length());
+
+        reopen();
+        assertValue("alpha", "a", "b");
+        assertAbsent("beta");
+        assertTrue(readJournal().endsWith("\n"));
+
+        // The rebuilt journal can be appended to
+        set("gamma", "e", "f");
+        reopen();
+        assertValue("alpha", "a", "b");
+        assertValue("gamma", "e", "f");
+    }
+
+    @Test
+    public void journalCutOffAfterDirtyDropsTheEdit() throws IOException {
+        set("alpha", "a", "b");
+        set("beta", "c", "d");
+        cache.close();
+        truncateJournal(endOfRecord(readJournal(), "DIRTY beta"));
+
+        reopen();
+        assertValue("alpha", "a", "b");
+        assertAbsent("beta");
+        assertNoFilesOf("beta");
+    }
+
+    @Test
+    public void journalCutOffAfterCleanKeepsTheEntry() throws IOException {
+        set("alpha", "a", "b");
+        set("beta", "c", "d");
+        cache.get("alpha").close();
+        cache.close();
+        truncateJournal(endOfRecord(readJournal(), "CLEAN beta"));
+
+        reopen();
+        assertValue("alpha", "a", "b");
+        assertValue("beta", "c", "d");
+    }
+
+    @Test
+    public void journalCutOffAfterRemoveKeepsTheRemoval() throws IOException {
+        set("alpha", "a", "b");
+        set("beta", "c", "d");
+        assertTrue(cache.remove("alpha"));
+        set("gamma", "e", "f");
+        cache.close();
+        truncateJournal(endOfRecord(readJournal(), "REMOVE alpha"));
+
+        reopen();
+        assertAbsent("alpha");
+        assertValue("beta", "c", "d");
+        assertAbsent("gamma");
+        assertNoFilesOf("gamma");
+    }
+
+    @Test
+    public void lostRemoveRecordLeavesNothingReadable() throws IOException {
+        set("alpha", "a", "b");
+        assertTrue(cache.remove("alpha"));
+        cache.close();
+        // The files are gone, the journal still says CLEAN
+        truncateJournal(readJournal().indexOf("REMOVE alpha"));
+
+        reopen();
+        assertAbsent("alpha");
+    }
+
+    @Test
+    public void lostRecordsOfNewEntryLeaveNoOrphanFiles() throws IOException {
+        set("alpha", "a", "b");
+        set("beta", "c", "d");
+        cache.close();
+        // Neither DIRTY nor CLEAN of beta made it, its files did
+        truncateJournal(readJournal().indexOf("DIRTY beta"));
+        assertTrue(new File(directory, "beta.0").exists());
+
+        reopen();
+        assertValue("alpha", "a", "b");
+        assertAbsent("beta");
+        assertNoFilesOf("beta");
+    }
+
+    @Test
+    public void lostCleanRecordOfUpdateDropsTheEntry() throws IOException {
+        set("alpha", "a", "b");
+        set("alpha", "new a", "new b");
+        cache.close();
+        truncateJournal(readJournal().lastIndexOf("CLEAN alpha"));
+
+        reopen();
+        // The old DIRTY without a CLEAN drops the entry as inconsistent
+        assertAbsent("alpha");
+        assertNoFilesOf("alpha");
+    }
+
+    @Test
+    public void groupCommitFlushesOnItsOwn() throws Exception {
+        cache.setGroupCommit(50, 1000);
+        set("alpha", "a", "b");
+        Thread.sleep(500);
+        // Without the timed flush the buffered records would not be on disk
+        assertTrue(readJournal().contains("CLEAN alpha"));
+    }
+
+    private void set(final String key, final String value0, final String value1) throws IOException {
+        final DiskLruCache.Editor editor = cache.edit(key);
+        assertNotNull(editor);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    private void assertValue(final String key, final String value0, final String value1) throws IOException {
+        final DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(key, snapshot);
+        try {
+            assertEquals(value0, snapshot.getString(0));
+            assertEquals(value1, snapshot.getString(1));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void assertAbsent(final String key) throws IOException {
+        assertNull(key, cache.get(key));
+    }
+
+    private void assertNoFilesOf(final String key) {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            assertFalse(new File(directory, key + "." + i).exists());
+            assertFalse(new File(directory, key + "." + i + ".tmp").exists());
+        }
+    }
+
+    private void reopen() throws IOException {
+        if (!cache.isClosed()) {
+            cache.close();
+        }
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE, false);
+    }
+
+    private String readJournal() throws IOException {
+        return DiskLruCache.readFully(new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+    }
+
+    /**
+     * @return The offset just past the newline ending the last record that
+     * starts with {@code prefix}
+     */
+    private static int endOfRecord(final String journal, final String prefix) {
+        final int start = journal.lastIndexOf(prefix);
+        assertTrue(prefix, start >= 0);
+        return journal.indexOf('\n', start) + 1;
+    }
+
+    private void truncateJournal(final int length) throws IOException {
+        assertTrue(length > 0);
+        final RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+}
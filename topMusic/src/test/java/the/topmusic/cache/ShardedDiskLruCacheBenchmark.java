@@ -0,0 +1,124 @@
+package the.topmusic.cache;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import the.topmusic.utils.DiskCacheUtils;
+
+/**
+ * Times one {@link DiskLruCache} against a {@link ShardedDiskLruCache} of 4
+ * segments with 1 to 8 threads. Each looks up random keys of a shared set and
+ * rewrites one in ten of them, as artwork lookups do. Group commit is set up
+ * as the app does.
+ */
+public class ShardedDiskLruCacheBenchmark {
+
+    private static final int[] THREAD_COUNTS = {
+            1, 2, 4, 8
+    };
+
+    private static final int SEGMENTS = 4;
+
+    private static final int KEYS = 2000;
+
+    private static final int VALUE_SIZE = 4096;
+
+    private static final long DURATION_MILLIS = 3000;
+
+    private static final String[] sKeys = new String[KEYS];
+
+    public static void main(final String[] args) throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            sKeys[i] = DiskCacheUtils.md5Hex("http://img.example.com/album/" + i + "/500x500.jpg");
+        }
+        for (final int threads : THREAD_COUNTS) {
+            System.out.printf("%d thread(s): single %.0f ops/s, sharded %.0f ops/s%n", threads,
+                    run(threads, false), run(threads, true));
+        }
+    }
+
+    private static double run(final int threads, final boolean sharded) throws Exception {
+        final File directory = File.createTempFile("ShardedDiskLruCacheBenchmark", "");
+        directory.delete();
+        directory.mkdir();
+        final DiskCache cache;
+        if (sharded) {
+            final ShardedDiskLruCache shardedCache = ShardedDiskLruCache.open(directory, 1, 1,
+                    100 * 1024 * 1024, false, SEGMENTS);
+            shardedCache.setGroupCommit(1000, 64);
+            cache = shardedCache;
+        } else {
+            final DiskLruCache singleCache = DiskLruCache.open(directory, 1, 1, 100 * 1024 * 1024,
+                    false);
+            singleCache.setGroupCommit(1000, 64);
+            cache = singleCache;
+        }
+        final byte[] value = new byte[VALUE_SIZE];
+        new Random(1).nextBytes(value);
+        for (final String key : sKeys) {
+            write(cache, key, value);
+        }
+
+        final AtomicInteger operations = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    final Random random = new Random(thread);
+                    final byte[] buffer = new byte[8192];
+                    try {
+                        start.await();
+                        while (System.currentTimeMillis() < deadline[0]) {
+                            final String key = sKeys[random.nextInt(KEYS)];
+                            if (random.nextInt(10) == 0) {
+                                write(cache, key, value);
+                            } else {
+                                final DiskLruCache.Snapshot snapshot = cache.get(key);
+                                if (snapshot != null) {
+                                    final InputStream in = snapshot.getInputStream(0);
+                                    while (in.read(buffer) != -1) {
+                                    }
+                                    snapshot.close();
+                                }
+                            }
+                            operations.incrementAndGet();
+                        }
+                    } catch (final Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        deadline[0] = System.currentTimeMillis() + DURATION_MILLIS;
+        start.countDown();
+        done.await();
+        final double perSecond = operations.get() * 1000.0 / DURATION_MILLIS;
+        cache.close();
+        DiskLruCache.deleteContents(directory);
+        directory.delete();
+        return perSecond;
+    }
+
+    private static void write(final DiskCache cache, final String key, final byte[] value)
+            throws Exception {
+        final DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            // Another thread is writing it
+            return;
+        }
+        final OutputStream out = editor.newOutputStream(0);
+        out.write(value);
+        out.close();
+        editor.commit();
+    }
+}
@@ -0,0 +1,109 @@
+package the.topmusic.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times {@link DiskCacheUtils#md5Hex(String)} against the way
+ * hashKeyForDisk used to hash a key, which is copied here: a MessageDigest
+ * looked up per call, the platform charset and Integer.toHexString. Timed on
+ * one thread and on four at once.
+ */
+public class DiskCacheUtilsBenchmark {
+
+    private static final int KEYS = 1024;
+
+    private static final int THREADS = 4;
+
+    private static final String[] sKeys = new String[KEYS];
+
+    // Keeps the results from being optimized away
+    private static volatile int sSink;
+
+    public static void main(final String[] args) throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            sKeys[i] = "http://img.example.com/album/" + (3000000 + i) + "/500x500.jpg";
+        }
+        final Hash md5Hex = new Hash() {
+            @Override
+            public String hash(final String key) {
+                return DiskCacheUtils.md5Hex(key);
+            }
+        };
+        final Hash old = new Hash() {
+            @Override
+            public String hash(final String key) {
+                return oldHashKeyForDisk(key);
+            }
+        };
+        // Warm up
+        run(md5Hex, 1, 1000000);
+        run(old, 1, 1000000);
+        for (final int threads : new int[] {
+                1, THREADS
+        }) {
+            System.out.printf("%d thread(s): md5Hex %.0f ns, old %.0f ns per key%n", threads,
+                    run(md5Hex, threads, 1000000), run(old, threads, 1000000));
+        }
+    }
+
+    private interface Hash {
+        String hash(String key);
+    }
+
+    /**
+     * @return The wall time per key hashed, in nanoseconds
+     */
+    private static double run(final Hash hash, final int threads, final int keysPerThread)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong sink = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    int length = 0;
+                    for (int i = 0; i < keysPerThread; i++) {
+                        length += hash.hash(sKeys[i % KEYS]).length();
+                    }
+                    sink.addAndGet(length);
+                    done.countDown();
+                }
+            }.start();
+        }
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - begin;
+        sSink = (int)sink.get();
+        return elapsed / (double)((long)threads * keysPerThread);
+    }
+
+    private static String oldHashKeyForDisk(final String key) {
+        String cacheKey;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(key.getBytes());
+            final StringBuilder builder = new StringBuilder();
+            for (final byte b : digest.digest()) {
+                final String hex = Integer.toHexString(0xFF & b);
+                if (hex.length() == 1) {
+                    builder.append('0');
+                }
+                builder.append(hex);
+            }
+            cacheKey = builder.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            cacheKey = String.valueOf(key.hashCode());
+        }
+        return cacheKey;
+    }
+}